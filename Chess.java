@@ -19,6 +19,11 @@ public class Chess {
     public static long[] kingMasks = new long[64];
     //pawns have diff masks for white moves, white captures, black moves, black captures
     public static long[][] pawnMasks = new long[64][4];
+
+    //for two squares sharing a row, column or diagonal: the whole line through both, and the squares strictly between
+    //zero for squares that aren't aligned
+    public static long[][] lineMasks = new long[64][64];
+    public static long[][] betweenMasks = new long[64][64];
     
     static {
 	for (int i=0; i<64; i++) {
@@ -32,6 +37,7 @@ public class Chess {
 	    kingMask(i);
 	    pawnMask(i);
 	}
+	for (int i=0; i<64; i++) lineMask(i);
     }
 	
     private static void diagonalMask(int position) {
@@ -61,6 +67,18 @@ public class Chess {
 	columnMasks[position] = verticalMask - (1L<<position);
     }
 
+    private static void lineMask(int position) {
+	for (long[] mask: masks) {
+	    long line = mask[position];
+	    while (line != 0L) {
+		int other = Long.numberOfTrailingZeros(line);
+		line &= line-1;
+		lineMasks[position][other] = mask[position] | (1L<<position);
+		betweenMasks[position][other] = rayMask(position, other) & ~(1L<<other);
+	    }
+	}
+    }
+
     // Populates array with possible moves
     private static void knightMask(int position) {
 	long knightMask = 0L;
@@ -133,40 +151,60 @@ public class Chess {
 	return moves & mask;//Returns valid moves for sliding piece
     }
 
-    public static long bishopMask(long occ, int i) {
+    //the original hyperbola quintessence sliders, kept as a fallback (-Dchess.sliders=hyperbola) and to check ChessMagic against
+    public static long hyperbolaBishopMask(long occ, int i) {
 	return directionMask(occ, 1, i) | directionMask(occ, 3, i);
     }
-    public static long rookMask(long occ, int i) {
+    public static long hyperbolaRookMask(long occ, int i) {
 	return directionMask(occ, 0, i) | directionMask(occ, 2, i);
     }
+
+    //sliding attacks come from the precomputed tables in ChessMagic
+    public static long bishopMask(long occ, int i) {
+	return ChessMagic.bishopMask(occ, i);
+    }
+    public static long rookMask(long occ, int i) {
+	return ChessMagic.rookMask(occ, i);
+    }
     public static long queenMask(long occ, int i) {
 	return bishopMask(occ, i) | rookMask(occ, i);
     }
     //gives mask of available enpassant move for pawn if existant
     public static long passantMask(int color, int passant, int i) {// Checks stored double move position
-	if (Math.abs(passant-i)==1) return (1L<<(passant+8*color));
+	if (Math.abs(passant-i)==1 && passant/8==i/8) return (1L<<(passant+8*color));
 	return 0L;
     }
 
     public static long castleMask(int color, ChessBoard b) {
-	if (color==ChessBoard.WHITE? b.whiteKingMoved: b.blackKingMoved) return 0L;
 	long mask = 0L;
 	int position = (color==ChessBoard.WHITE? 3: 59);
-	if (((b.getAll() & 0b110L) == 0L) &
+	long attacked = b.attackedBy(-1*color);
+	if (b.castleRight(color, true) &
+	    ((b.getAll() & (0b110L<<(position-3))) == 0L) &
 	    ((b.bbPieces(color, ChessBoard.ROOK) & (1L<<(position-3)))!=0L) &
-	    (b.attacking(position, -1*color) == 0L) &
-	    (b.attacking(position-1, -1*color) == 0L))
+	    ((attacked & (0b11L<<(position-1))) == 0L))
 	    mask += (1L << (position-2));
-	if (((b.getAll() & 0b1110000L) == 0L) &
+	if (b.castleRight(color, false) &
+	    ((b.getAll() & (0b1110000L<<(position-3))) == 0L) &
 	    ((b.bbPieces(color, ChessBoard.ROOK) & (1L<<(position+4)))!=0L) &
-	    (b.attacking(position, -1*color) == 0L) &
-	    (b.attacking(position+1, -1*color) == 0L))
+	    ((attacked & (0b11L<<position)) == 0L))
 	    mask += (1L << (position+2));
 	return mask;
     }
 	    
 	
 
+    //castling corners h1, a1, h8, a8 as bits 0-3 (see ChessBoard.rooksMoved), 0 for any other square
+    public static int corner(int pos) {
+	switch (pos) {
+	case 0: return 1;
+	case 7: return 2;
+	case 56: return 4;
+	case 63: return 8;
+	default: return 0;
+	}
+    }
+
     //i don't know if there is a more effecient way to do this, lmk if you think of one
     public static long rayMask(int from, int to) {
 	int x = to%8-from%8;
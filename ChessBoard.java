@@ -1,4 +1,5 @@
 import java.util.List;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.stream.Collectors;
 
@@ -27,14 +28,77 @@ public class ChessBoard {
 	return (color==WHITE)? bbWhite[type]: bbBlack[type];
     }
 
+    // occupancy by color and overall, plus a mailbox of what stands on each square
+    // (color*(type+1), 0 when empty), all kept up to date by addPiece/removePiece
+    private long white;
+    private long black;
+    private long all;
+    private final byte[] mailbox;
+
     public boolean blackKingMoved;
     public boolean whiteKingMoved;
+    // castling corners whose rook has moved or been taken, see Chess.corner
+    public int rooksMoved;
+
+    //castling rights left for color, short is towards the h file
+    public boolean castleRight(int color, boolean kingside) {
+	if (color==WHITE? whiteKingMoved: blackKingMoved) return false;
+	int corner = (color==WHITE? 0: 56) + (kingside? 0: 7);
+	return (rooksMoved & Chess.corner(corner)) == 0;
+    }
 
   // index of enpassantable square if exists, -1 otherwise
     public int passant;
 
     private void resetPassant() {passant = -1;}
 
+    // side to move, flipped by makeMove
+    public int turn;
+
+    // zobrist key of the position, kept up to date by addPiece/removePiece and makeMove/unmakeMove
+    private long key;
+
+    public long getKey() {
+	return key;
+    }
+
+    // the same over the pawns alone, for the pawn structure cache in ChessPawns
+    private long pawnKey;
+
+    public long getPawnKey() {
+	return pawnKey;
+    }
+
+    // running white-minus-black totals for ChessEval, kept up to date by addPiece/removePiece like the key
+    private int mgScore;
+    private int egScore;
+    private int phase;
+
+    public int getMgScore() {
+	return mgScore;
+    }
+    public int getEgScore() {
+	return egScore;
+    }
+    public int getPhase() {
+	return phase;
+    }
+
+    // squares attacked by white and by black, each worked out on first use and dropped whenever a piece moves
+    private final long[] attacks = new long[2];
+    private int attacksValid;
+
+    // -Dchess.debug=true recomputes the key and evaluation from scratch after every make/unmake and fails on a mismatch
+    static final boolean DEBUG = Boolean.getBoolean("chess.debug");
+
+    // undo records for unmakeMove, see makeMove(int)
+    private long[] undoStack;
+    private int undoSize;
+    // for isLegalMove and hasAnyLegalMove, one piece has at most 27 moves (a queen in the middle)
+    private final int[] scratch = new int[32];
+    // for toSan and fromSan
+    private final int[] sanMoves = new int[ChessMoveBuffer.CAPACITY];
+
     public final List<Integer> capturedWhitePieces;
     public final List<Integer> capturedBlackPieces;
     public List<Integer> capturedPieces(int color) {
@@ -53,19 +117,47 @@ public class ChessBoard {
      */    
 
     public ChessBoard(){
+	this(true);
+    }
+
+    //the history is built from the position, so a copy leaves it until its own position is in place
+    private ChessBoard(boolean withHistory) {
 	bbWhite = new long[6];
 	bbBlack = new long[6];
+	mailbox = new byte[64];
 	capturedWhitePieces = new LinkedList<>();
 	capturedBlackPieces = new LinkedList<>();
 	resetPassant();
-	initHistory();
+	turn = WHITE;
+	key = stateKey();
+	undoStack = new long[64];
+	undoSize = 0;
+	if (withHistory) initHistory();
     }
 
+    //copies the position and its clocks (not the undo stack or earlier positions, a copy can't take back moves made
+    //before it or count repetitions of them)
     public ChessBoard(ChessBoard other) {
-	this();
+	this(false);
 	System.arraycopy(other.bbWhite, 0, bbWhite, 0, 6);
 	System.arraycopy(other.bbBlack, 0, bbBlack, 0, 6);
+	System.arraycopy(other.mailbox, 0, mailbox, 0, 64);
+	white = other.white;
+	black = other.black;
+	all = other.all;
+	key = other.key;
+	pawnKey = other.pawnKey;
+	mgScore = other.mgScore;
+	egScore = other.egScore;
+	phase = other.phase;
+	passant = other.passant;
+	whiteKingMoved = other.whiteKingMoved;
+	blackKingMoved = other.blackKingMoved;
+	rooksMoved = other.rooksMoved;
+	turn = other.turn;
 	initHistory();
+	history.setHalfmoveClock(other.history.halfmoveClock());
+	history.setFullmoveNumber(other.history.fullmoveNumber());
     }
 
     public ChessBoard clone() {
@@ -84,8 +176,224 @@ public class ChessBoard {
 	bbBlack[QUEEN] = bbBlack[KING];
 	bbBlack[KING] = queens;
 	whiteKingMoved=blackKingMoved=false;
-	initHistory();
+	rooksMoved = 0;
+	resetPassant();
+	turn = WHITE;
+	refresh();
+    }
 
+    public static final String START_FEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+
+    //a new board set up from forsyth-edwards notation, see setFen
+    public static ChessBoard fromFen(String fen) {
+	ChessBoard b = new ChessBoard();
+	b.setFen(fen);
+	return b;
+    }
+
+    /*
+     *replaces the position with the one in fen: placement, side to move, castling, passant square, then the halfmove
+     *clock and move number, which can be left off (as in epd). the captured lists and undo stack are emptied and the
+     *game record starts over from here. throws IllegalArgumentException on anything malformed or a position the side
+     *not to move is in check in, the board is then empty
+     */
+    public void setFen(String fen) {
+	String[] fields = fen.trim().split("\\s+");
+	clear();
+	try {
+	    if (fields.length<4) throw new IllegalArgumentException("FEN needs placement, side, castling and passant");
+	    String[] ranks = fields[0].split("/");
+	    if (ranks.length!=8) throw new IllegalArgumentException("FEN needs 8 ranks");
+	    for (int r=0; r<8; r++) {
+		int file = 0;
+		for (char c: ranks[r].toCharArray()) {
+		    int type = "pbnrqk".indexOf(Character.toLowerCase(c));
+		    if (c>='1' && c<='8') {
+			file += c - '0';
+		    } else if (type>=0 && file<8) {
+			//the first rank listed is the 8th, and each starts from the a file
+			(Character.isUpperCase(c)? bbWhite: bbBlack)[type] |= 1L<<(8*(7-r) + 7-file);
+			file++;
+		    } else {
+			throw new IllegalArgumentException("bad rank " + ranks[r]);
+		    }
+		}
+		if (file!=8) throw new IllegalArgumentException("bad rank " + ranks[r]);
+	    }
+	    if (Long.bitCount(bbWhite[KING])!=1 || Long.bitCount(bbBlack[KING])!=1)
+		throw new IllegalArgumentException("each side needs one king");
+
+	    if (!fields[1].equals("w") && !fields[1].equals("b")) throw new IllegalArgumentException("side to move is w or b");
+	    turn = fields[1].equals("w")? WHITE: BLACK;
+
+	    String castling = fields[2];
+	    if (!castling.matches("-|K?Q?k?q?")) throw new IllegalArgumentException("bad castling " + castling);
+	    int rights = 0;
+	    for (int i=0; i<4; i++) if (castling.indexOf("KQkq".charAt(i))>=0) rights |= 1<<i;
+	    setCastleRights(rights);
+
+	    if (!fields[3].equals("-")) {
+		//fen names the square behind the pawn, the board keeps the pawn itself
+		int target = ChessMove.toIndex(fields[3]);
+		if (target/8 != (turn==WHITE? 5: 2)) throw new IllegalArgumentException("bad passant square " + fields[3]);
+		passant = target - 8*turn;
+	    }
+	    refresh();
+	    //the side that just moved can't have left its king in check, and move generation assumes it didn't
+	    if (inCheck(-turn)) throw new IllegalArgumentException("the side not to move is in check");
+	    if (fields.length>4) history.setHalfmoveClock(Integer.parseInt(fields[4]));
+	    if (fields.length>5) history.setFullmoveNumber(Integer.parseInt(fields[5]));
+	} catch (IllegalArgumentException iae) {
+	    clear();
+	    refresh();
+	    throw new IllegalArgumentException("Invalid FEN \"" + fen + "\": " + iae.getMessage());
+	}
+    }
+
+    //empties the board and everything that goes with a game: captured lists, undo stack, passant and castling.
+    //the caller fills the bitboards and state back in and calls refresh
+    void clear() {
+	Arrays.fill(bbWhite, 0L);
+	Arrays.fill(bbBlack, 0L);
+	capturedWhitePieces.clear();
+	capturedBlackPieces.clear();
+	undoSize = 0;
+	resetPassant();
+	setCastleRights(0);
+    }
+
+    //sets the castling flags from rights as bits, white short, white long, black short, black long (see ChessZobrist.castleRights)
+    public void setCastleRights(int rights) {
+	whiteKingMoved = (rights & 3) == 0;
+	blackKingMoved = (rights & 12) == 0;
+	rooksMoved = ((rights & 1)==0? Chess.corner(0): 0) | ((rights & 2)==0? Chess.corner(7): 0)
+	    | ((rights & 4)==0? Chess.corner(56): 0) | ((rights & 8)==0? Chess.corner(63): 0);
+    }
+
+    //the position as fen, move clocks from the game record
+    public String toFen() {
+	StringBuilder fen = new StringBuilder();
+	for (int rank=7; rank>=0; rank--) {
+	    int empty = 0;
+	    for (int file=0; file<8; file++) {
+		int pos = 8*rank + 7-file;
+		int type = typeAtPosition(pos);
+		if (type==EMPTY) {
+		    empty++;
+		    continue;
+		}
+		if (empty>0) fen.append(empty);
+		empty = 0;
+		char c = "pbnrqk".charAt(type);
+		fen.append(colorAtPosition(pos)==WHITE? Character.toUpperCase(c): c);
+	    }
+	    if (empty>0) fen.append(empty);
+	    if (rank>0) fen.append('/');
+	}
+	fen.append(turn==WHITE? " w ": " b ");
+	String castling = (castleRight(WHITE, true)? "K": "") + (castleRight(WHITE, false)? "Q": "")
+	    + (castleRight(BLACK, true)? "k": "") + (castleRight(BLACK, false)? "q": "");
+	fen.append(castling.isEmpty()? "-": castling);
+	//the square the pawn that just moved two skipped over
+	fen.append(' ').append(passant==-1? "-": ChessMove.toPositionString(passant - 8*colorAtPosition(passant)));
+	fen.append(' ').append(history.halfmoveClock()).append(' ').append(history.fullmoveNumber());
+	return fen.toString();
+    }
+
+    /*
+     *standard algebraic notation for a legal move here, like Nbd7, exf6, e8=Q+ or O-O-O#. takes the other moves
+     *onto the same square to disambiguate, and plays the move to see if it checks or mates
+     */
+    public String toSan(int code) {
+	int start = ChessMove.startOf(code);
+	int end = ChessMove.endOf(code);
+	int type = ChessMove.typeOf(code);
+	String san;
+	if (ChessMove.isCastle(code)) {
+	    //short castling goes towards the h file, which is square 0
+	    san = end%8 < start%8? "O-O": "O-O-O";
+	} else {
+	    san = type==PAWN? "": "PBNRQK".substring(type, type+1);
+	    if (type==PAWN) {
+		if (ChessMove.isCapture(code)) san += ChessMove.toPositionString(start).charAt(0);
+	    } else {
+		int[] others = sanMoves;
+		int n = legalMoves(turn, bbPieces(turn, type) & ~(1L<<start), 1L<<end, others, 0);
+		boolean ambiguous = false, sameFile = false, sameRank = false;
+		for (int i=0; i<n; i++) {
+		    int other = ChessMove.startOf(others[i]);
+		    if (ChessMove.endOf(others[i])!=end) continue;
+		    ambiguous = true;
+		    sameFile |= other%8==start%8;
+		    sameRank |= other/8==start/8;
+		}
+		String from = ChessMove.toPositionString(start);
+		if (ambiguous) san += !sameFile? from.substring(0, 1): !sameRank? from.substring(1): from;
+	    }
+	    if (ChessMove.isCapture(code)) san += "x";
+	    san += ChessMove.toPositionString(end);
+	    int promotion = ChessMove.promotionOf(code);
+	    if (promotion!=EMPTY) san += "=" + "PBNRQK".charAt(promotion);
+	}
+	makeMove(code);
+	if (inCheck(turn)) san += hasAnyLegalMove(turn)? "+": "#";
+	unmakeMove();
+	return san;
+    }
+
+    /*
+     *the legal move that san names here, or 0 if it names none or is ambiguous. read straight off the text (piece,
+     *from file and rank if given, destination, promotion), then matched against the moves onto that square only.
+     *check and annotation marks are ignored, and so is a missing '=' or promotion (which promotes to a queen)
+     */
+    public int fromSan(String san) {
+	int[] moves = sanMoves;
+	int n;
+	int from = 0;
+	int to = san.length();
+	while (from<to && san.charAt(from)==' ') from++;
+	while (to>from && "+#!? ".indexOf(san.charAt(to-1))>=0) to--;
+	if (san.startsWith("O-O", from) || san.startsWith("0-0", from)) {
+	    boolean queenside = to-from==5 && (san.startsWith("O-O-O", from) || san.startsWith("0-0-0", from));
+	    if (to-from!=3 && !queenside) return 0;
+	    int king = getKingIndex(turn);
+	    n = legalMoves(turn, 1L<<king, 1L<<(queenside? king+2: king-2), moves, 0);
+	    for (int i=0; i<n; i++) if (ChessMove.isCastle(moves[i])) return moves[i];
+	    return 0;
+	}
+	int type = PAWN;
+	if (from<to && "BNRQK".indexOf(san.charAt(from))>=0) type = "PBNRQK".indexOf(san.charAt(from++));
+	int promotion = EMPTY;
+	if (type==PAWN && to-from>2 && "BNRQ".indexOf(san.charAt(to-1))>=0) {
+	    promotion = "PBNRQK".indexOf(san.charAt(--to));
+	    if (san.charAt(to-1)=='=') to--;
+	}
+	if (to-from<2) return 0;
+	char file = san.charAt(to-2);
+	char rank = san.charAt(to-1);
+	if (file<'a' || file>'h' || rank<'1' || rank>'8') return 0;
+	int end = 8*(rank-'1') + ('h'-file);
+	int fromFile = -1;
+	int fromRank = -1;
+	for (int i=from; i<to-2; i++) {
+	    char c = san.charAt(i);
+	    if (c>='a' && c<='h') fromFile = 'h' - c;
+	    else if (c>='1' && c<='8') fromRank = c - '1';
+	    else if (c!='x' && c!=':' && c!='-') return 0;
+	}
+	n = legalMoves(turn, bbPieces(turn, type), 1L<<end, moves, 0);
+	int found = 0;
+	for (int i=0; i<n; i++) {
+	    int move = moves[i];
+	    int start = ChessMove.startOf(move);
+	    if (ChessMove.endOf(move)!=end || ChessMove.isCastle(move)) continue;
+	    if (fromFile>=0 && start%8!=fromFile || fromRank>=0 && start/8!=fromRank) continue;
+	    int p = ChessMove.promotionOf(move);
+	    if (p!=EMPTY && p!=(promotion==EMPTY? QUEEN: promotion) || p==EMPTY && promotion!=EMPTY) continue;
+	    if (found!=0) return 0;
+	    found = move;
+	}
+	return found;
     }
 	
     /**
@@ -128,9 +436,7 @@ public class ChessBoard {
      */    
 
     public long getWhite() {
-	long out = 0L;
-	for (int i=0; i<6; i++) out |= bbWhite[i];
-	return out;
+	return white;
     }
 
     /**
@@ -139,9 +445,7 @@ public class ChessBoard {
      */
 
     public long getBlack() {
-	long out = 0L;
-	for (int i=0; i<6; i++) out |= bbBlack[i];
-	return out;
+	return black;
     }
 
     public long getByColor(int color) {
@@ -154,9 +458,65 @@ public class ChessBoard {
      */
 
     public long getAll() {
-      return getWhite() | getBlack();
+      return all;
     } 
 
+    //recomputes occupancy, the mailbox and the key from the twelve bitboards and the state fields,
+    //for when bbWhite/bbBlack, turn, passant or the castling flags were written directly
+    public void refresh() {
+	white = black = 0L;
+	Arrays.fill(mailbox, (byte) 0);
+	for (int type=0; type<6; type++) {
+	    white |= bbWhite[type];
+	    black |= bbBlack[type];
+	    for (int i=0; i<64; i++) {
+		if (((1L<<i) & bbWhite[type]) != 0L) mailbox[i] = (byte) (type+1);
+		if (((1L<<i) & bbBlack[type]) != 0L) mailbox[i] = (byte) -(type+1);
+	    }
+	}
+	all = white | black;
+	attacksValid = 0;
+	key = ChessZobrist.key(this);
+	pawnKey = ChessZobrist.pawnKey(this);
+	int[] totals = ChessEval.totals(this);
+	mgScore = totals[0];
+	egScore = totals[1];
+	phase = totals[2];
+	//a new starting position, so a new game record
+	initHistory();
+    }
+
+    //the part of the key that isn't pieces: side to move, castling rights and passant file
+    private long stateKey() {
+	long k = ChessZobrist.castling[ChessZobrist.castleRights(this)];
+	if (turn==BLACK) k ^= ChessZobrist.blackToMove;
+	if (passantPossible()) k ^= ChessZobrist.passant[passant%8];
+	return k;
+    }
+
+    //whether a pawn of the side to move stands beside the one that just moved two. passant is set after every double
+    //push, but only then can it make the position any different (for keys, and so for repetitions)
+    public boolean passantPossible() {
+	if (passant==-1) return false;
+	long beside = ((1L<<passant)<<1 & ~ChessPawns.H_FILE) | ((1L<<passant)>>>1 & ~ChessPawns.A_FILE);
+	return (beside & bbPieces(turn, PAWN)) != 0L;
+    }
+
+    private void verify() {
+	long expected = ChessZobrist.key(this);
+	if (key!=expected)
+	    throw new IllegalStateException("zobrist key " + Long.toHexString(key) + ", expected " + Long.toHexString(expected) + "\n" + this);
+	if (pawnKey!=ChessZobrist.pawnKey(this))
+	    throw new IllegalStateException("pawn key " + Long.toHexString(pawnKey) + ", expected " + Long.toHexString(ChessZobrist.pawnKey(this)) + "\n" + this);
+	for (int i=0; i<2; i++)
+	    if ((attacksValid & (1<<i))!=0 && attacks[i]!=attacks(i==0? WHITE: BLACK))
+		throw new IllegalStateException("stale attack map for " + (i==0? "white": "black") + "\n" + this);
+	int[] totals = ChessEval.totals(this);
+	if (mgScore!=totals[0] || egScore!=totals[1] || phase!=totals[2])
+	    throw new IllegalStateException("eval totals " + mgScore + "/" + egScore + "/" + phase + ", expected "
+					    + totals[0] + "/" + totals[1] + "/" + totals[2] + "\n" + this);
+    }
+
 
     /**
      *Method that will execute the attack
@@ -165,14 +525,41 @@ public class ChessBoard {
      *@return long mask of all squares containing pieces of the given color that ar attacking the specific square at position pos
      */
   public int getKingIndex(int color) {
-    int index = 0;  
-    long king = bbPieces(color, KING);
-    while ((king>>=1)>0) index++;
-    return index;
+    return Long.numberOfTrailingZeros(bbPieces(color, KING));
   }
+    //every square a piece of color attacks (or defends), computed at most once per position
+    public long attackedBy(int color) {
+	int i = color==WHITE? 0: 1;
+	if ((attacksValid & (1<<i)) == 0) {
+	    attacks[i] = attacks(color);
+	    attacksValid |= 1<<i;
+	}
+	return attacks[i];
+    }
+
+    public boolean inCheck(int color) {
+	return (attackedBy(-color) & bbPieces(color, KING)) != 0L;
+    }
+
+    private long attacks(int color) {
+	long occ = getAll();
+	long attacked = 0L;
+	for (long l=bbPieces(color, PAWN); l != 0L; l &= l-1) attacked |= Chess.pawnMasks[Long.numberOfTrailingZeros(l)][2-color];
+	for (long l=bbPieces(color, KNIGHT); l != 0L; l &= l-1) attacked |= Chess.knightMasks[Long.numberOfTrailingZeros(l)];
+	for (long l=bbPieces(color, BISHOP) | bbPieces(color, QUEEN); l != 0L; l &= l-1) attacked |= Chess.bishopMask(occ, Long.numberOfTrailingZeros(l));
+	for (long l=bbPieces(color, ROOK) | bbPieces(color, QUEEN); l != 0L; l &= l-1) attacked |= Chess.rookMask(occ, Long.numberOfTrailingZeros(l));
+	for (long l=bbPieces(color, KING); l != 0L; l &= l-1) attacked |= Chess.kingMasks[Long.numberOfTrailingZeros(l)];
+	return attacked;
+    }
+
     //return a mask of all pieces of a given color attacking given square
 
     public long attacking(int pos, int color) {
+	return attacking(pos, color, getAll(), 0L);
+    }
+
+    //same, but against a hypothetical occupancy occ, ignoring pieces on the squares in removed
+    public long attacking(int pos, int color, long occ, long removed) {
 	long pawns, knights, kings, bishopQueens, rookQueens;
 	pawns = bbPieces(color, PAWN);
 	knights = bbPieces(color, KNIGHT);
@@ -180,11 +567,11 @@ public class ChessBoard {
 	bishopQueens = rookQueens = bbPieces(color, QUEEN);
 	bishopQueens |= bbPieces(color, BISHOP);
 	rookQueens |= bbPieces(color, ROOK);
-	return(pawns & Chess.pawnMasks[pos][2+color])
-	    | (knights & Chess.knightMasks[pos])
-	    | (kings & Chess.kingMasks[pos])
-	    | (bishopQueens & Chess.bishopMask(getAll(), pos))
-	    | (rookQueens & Chess.rookMask(getAll(), pos));
+	return ((pawns & Chess.pawnMasks[pos][2+color])
+		| (knights & Chess.knightMasks[pos])
+		| (kings & Chess.kingMasks[pos])
+		| (bishopQueens & Chess.bishopMask(occ, pos))
+		| (rookQueens & Chess.rookMask(occ, pos))) & ~removed;
     }
 
     /**
@@ -196,9 +583,9 @@ public class ChessBoard {
    //returns a filter condition on moves that would get the king out of check if in check, otherwise just a lot of 1s
 
     public long inCheckFilter(int color) {
+	if (!inCheck(color)) return -1L;
 	int pos = getKingIndex(color);
 	long attacking = attacking(pos, -color);
-	if (attacking==0L) return -1L;
 
 	long filter = (attacking & bbPieces(-color, KNIGHT))|(attacking & bbPieces(-color, PAWN));
 	for (Integer i: toIndices(attacking & (bbPieces(-color, QUEEN)|bbPieces(-color, ROOK)|bbPieces(-color, BISHOP)))) {
@@ -211,101 +598,208 @@ public class ChessBoard {
     
     // piece number for presence of either color, -1 for blank
     public int typeAtPosition(int i) {
-	for (int j=0; j<6; j++)
-	    if (((1L << i) & (bbBlack[j] | bbWhite[j])) != 0) return j;
-	return -1;
+	return Math.abs(mailbox[i]) - 1;
     }
 
     // 0 for empty, 1 for white, -1 for black
     public int colorAtPosition(int i) {
-	if (((1L << i) & getWhite()) != 0) return WHITE;
-	if (((1L << i) & getBlack()) != 0) return BLACK;
-	return 0;
+	return Integer.signum(mailbox[i]);
     }
 
     public void promotePawn(int position, int type) {
 	if (typeAtPosition(position) != PAWN) return;
 	if (type < 0 || type > 4) return;
 	int color = colorAtPosition(position);
-	switch (color) {
-	case WHITE:
-	    bbWhite[type] |= (1L << position);
-	    bbWhite[PAWN] &= -1*((1L << position) + 1L);
-	    break;
-	case BLACK:
-	    bbBlack[type] |= (1L << position);
-	    bbBlack[PAWN] &= -1*((1L << position) + 1L);
-	}
+	removePiece(color, PAWN, position);
+	addPiece(color, type, position);
     }
 	    
     //move piece
     public void movePiece(int color, int startType, int endType, int start, int end) {
-	switch (color) { //could technically be a conditional, but this leaves room to change null move conditions
-	case WHITE:
-	    bbWhite[startType] |= (1L << end); //add white piece at end
-	    bbWhite[startType] &= -1*((1L << start)+1L);//remove white piece at start
-	    if (endType!=-1) bbBlack[endType] &= -1 *((1L << end)+1L);//remove black piece at end
-	    break;
-	case BLACK:
-	    bbBlack[startType] |= (1L << end);//add black piece at end
-	    bbBlack[startType] &= -1*((1L << start)+1L);//remove black piece at start
-	    if (endType!=-1) bbWhite[endType] &= -1 *((1L << end)+1L);//remove white piece at end
-	    break;
-	}
+	if (endType!=-1) removePiece(-color, endType, end);//remove enemy piece at end
+	removePiece(color, startType, start);//remove piece at start
+	addPiece(color, startType, end);//add piece at end
     }
     
     //moves piece then does all associated weird stuff
     public void makeMove(ChessMove move) {
 	int startType = typeAtPosition(move.start);
 	if (startType==-1) return;
-	int endType = typeAtPosition(move.end);
 	int color = colorAtPosition(move.start);
-	movePiece(color, startType, endType, move.start, move.end);
+	int code = toCode(move);
+	makeMove(code);
+	history.add(code);
 
-	//all the following come after the actual move making in case of unchecked exceptions during bitboard manipulation
-
-	//pawn promotion!
-	if (startType==PAWN && (move.end/8)==(color==WHITE? 7: 0)) promotePawn(move.end, QUEEN);
-	
 	//if a capture, then add to the enemy's captured list this type of capture piece
-	if (move.capture) capturedPieces((color + 1)/2).add(endType);
+	//(going by the packed code, a ChessMove made from two squares doesn't know it captures)
+	if (ChessMove.isCapture(code)) capturedPieces((color + 1)/2).add(ChessMove.capturedOf(code));
+    }
 
-	//if a pawn just moved in front of a passantable square, kill the pawn there
-	if (startType==PAWN && move.end-8*color==passant) {
-	    switch (color) {
-	    case WHITE:
-		bbBlack[PAWN] &= -1*((1L << passant)+1L);
-		break;
-	    case BLACK:
-		bbWhite[PAWN] &= -1*((1L << passant)+1L);
-		break;
+    //drops the last captured piece makeMove(ChessMove) listed for a move by color, when the history takes it back
+    void uncapture(int color) {
+	List<Integer> captured = capturedPieces((color + 1)/2);
+	if (!captured.isEmpty()) captured.remove(captured.size()-1);
+    }
+
+    //packs a ChessMove against the current position, filling in types and flags from the board
+    public int toCode(ChessMove move) {
+	int type = typeAtPosition(move.start);
+	int color = colorAtPosition(move.start);
+	int captured = typeAtPosition(move.end);
+	int promotion = EMPTY;
+	int flags = 0;
+	if (type==PAWN) {
+	    if ((move.end/8)==(color==WHITE? 7: 0)) promotion = (move.promotion==EMPTY)? QUEEN: move.promotion;
+	    if (Math.abs(move.start/8-move.end/8)==2) flags = ChessMove.DOUBLE_PUSH;
+	    //a diagonal step onto the empty square behind an enemy double pushed pawn
+	    if (passant!=-1 && move.end-8*color==passant && captured==EMPTY && colorAtPosition(passant)==-color) {
+		flags = ChessMove.PASSANT;
+		captured = PAWN;
 	    }
 	}
-	
+	if (type==KING && Math.abs(move.start%8 - move.end%8)>1) flags = ChessMove.CASTLE;
+	return ChessMove.encode(move.start, move.end, type, captured, promotion, flags);
+    }
+
+    /*
+     *plays a packed move and pushes a compact undo record, so unmakeMove can restore the exact prior state.
+     *the record is the move code itself (it already carries the captured type, promotion and castle/passant flags)
+     *in the low 32 bits, with the previous passant square, castling flags, side to move and moved rooks above it
+     */
+    public void makeMove(int code) {
+	int start = ChessMove.startOf(code);
+	int end = ChessMove.endOf(code);
+	int type = ChessMove.typeOf(code);
+	int color = colorAtPosition(start);
+	if (type==EMPTY || color==0) return;
+	pushUndo(code);
+	key ^= stateKey();
+
+	if (ChessMove.isPassant(code)) {
+	    //the captured pawn isn't on the end square, kill it where it stands
+	    movePiece(color, PAWN, EMPTY, start, end);
+	    removePiece(-color, PAWN, passant);
+	} else {
+	    movePiece(color, type, ChessMove.capturedOf(code), start, end);
+	}
+
+	//pawn promotion!
+	if (ChessMove.isPromotion(code)) promotePawn(end, ChessMove.promotionOf(code));
+
 	resetPassant();
 	//if you double push a pawn, set its endpoint to be the enpassant square
-	if (startType==PAWN && Math.abs(move.start/8-move.end/8)==2) passant = move.end;
-
+	if (ChessMove.isDoublePush(code)) passant = end;
 
 	//when you move a king, update the castling variables
-	if (startType==KING)
+	if (type==KING)
 	    if (color==WHITE) {
 		whiteKingMoved = true;
 	    } else {
 		blackKingMoved = true;
 	    }
 
+	//anything leaving or landing on a corner means that rook can't castle anymore
+	rooksMoved |= Chess.corner(start) | Chess.corner(end);
+
 	//if king castled, then move the rook to accompany
-	if (startType==KING && Math.abs(move.start%8 - move.end%8)>1) {
+	if (ChessMove.isCastle(code)) {
 	    int position = (color==WHITE? 3: 59);
-	    if (move.start > move.end) {
+	    if (start > end) {
 		movePiece(color, ROOK, EMPTY, position-3, position-1);
 	    } else {
 		movePiece(color, ROOK, EMPTY, position+4, position+1);
 	    }
 	}
-	    
+	turn = -color;
+	key ^= stateKey();
+	if (DEBUG) verify();
+    }
+
+    //takes back the last move made with makeMove, in place
+    public void unmakeMove() {
+	long undo = undoStack[--undoSize];
+	int code = (int) undo;
+	int start = ChessMove.startOf(code);
+	int end = ChessMove.endOf(code);
+	int type = ChessMove.typeOf(code);
+	int captured = ChessMove.capturedOf(code);
+	int color = colorAtPosition(end);
+	key ^= stateKey();
+
+	if (ChessMove.isCastle(code)) {
+	    int position = (color==WHITE? 3: 59);
+	    if (start > end) {
+		movePiece(color, ROOK, EMPTY, position-1, position-3);
+	    } else {
+		movePiece(color, ROOK, EMPTY, position+1, position+4);
+	    }
+	}
+	if (ChessMove.isPromotion(code)) {
+	    removePiece(color, ChessMove.promotionOf(code), end);
+	    addPiece(color, PAWN, end);
+	}
+	movePiece(color, type, EMPTY, end, start);
+	if (captured!=EMPTY) addPiece(-color, captured, ChessMove.isPassant(code)? end - 8*color: end);
+
+	int state = (int) (undo>>>32);
+	passant = (state & 127) - 1;
+	whiteKingMoved = (state & 128)!=0;
+	blackKingMoved = (state & 256)!=0;
+	turn = (state & 512)!=0? WHITE: BLACK;
+	rooksMoved = (state>>>10) & 15;
+	key ^= stateKey();
+	if (DEBUG) verify();
+    }
+
+    private void pushUndo(int code) {
+	if (undoSize==undoStack.length) undoStack = Arrays.copyOf(undoStack, 2*undoStack.length);
+	long state = (passant + 1) | (whiteKingMoved? 128: 0) | (blackKingMoved? 256: 0) | (turn==WHITE? 512: 0) | (rooksMoved<<10);
+	undoStack[undoSize++] = (code & 0xFFFFFFFFL) | (state<<32);
+    }
+
+    //number of moves that can currently be taken back
+    public int undoDepth() {
+	return undoSize;
     }
+
+    //the only two places the board changes, everything derived from the bitboards (key and eval totals too) is updated here
+    private void addPiece(int color, int type, int pos) {
+	long bit = 1L<<pos;
+	if (color==WHITE) {
+	    bbWhite[type] |= bit;
+	    white |= bit;
+	} else {
+	    bbBlack[type] |= bit;
+	    black |= bit;
+	}
+	all |= bit;
+	mailbox[pos] = (byte) (color*(type+1));
+	attacksValid = 0;
+	key ^= ChessZobrist.piece(color, type, pos);
+	if (type==PAWN) pawnKey ^= ChessZobrist.piece(color, type, pos);
+	mgScore += ChessEval.mg(color, type, pos);
+	egScore += ChessEval.eg(color, type, pos);
+	phase += ChessEval.PHASE[type];
+    }
+    private void removePiece(int color, int type, int pos) {
+	long bit = ~(1L<<pos);
+	if (color==WHITE) {
+	    bbWhite[type] &= bit;
+	    white &= bit;
+	} else {
+	    bbBlack[type] &= bit;
+	    black &= bit;
+	}
+	all &= bit;
+	mailbox[pos] = 0;
+	attacksValid = 0;
+	key ^= ChessZobrist.piece(color, type, pos);
+	if (type==PAWN) pawnKey ^= ChessZobrist.piece(color, type, pos);
+	mgScore -= ChessEval.mg(color, type, pos);
+	egScore -= ChessEval.eg(color, type, pos);
+	phase -= ChessEval.PHASE[type];
+    }
+
     public void makeMove(String start, String end) {
 	makeMove(new ChessMove(start, end));
     }
@@ -313,17 +807,9 @@ public class ChessBoard {
     //for debugging only
     public void place(int color, int type, int pos) {
 	int t = typeAtPosition(pos);
-	if (color==WHITE) {
-	    if (t!=-1) bbBlack[t] &= -1 *((1L << pos)+1L);
-	} else {
-	    if (t!=-1) bbWhite[t] &= -1 *((1L << pos)+1L);
-	}
+	if (t!=-1) removePiece(colorAtPosition(pos), t, pos);
 	if (type==-1) return;
- 	if (color==WHITE) {
-	    bbWhite[type] |= (1L<<pos);
-	} else {
-	    bbBlack[type] |= (1L<<pos);
-	}
+	addPiece(color, type, pos);
     }
     public void place(int color, int type, String pos) {
 	place(color, type, ChessMove.toIndex(pos));
@@ -369,8 +855,25 @@ public class ChessBoard {
 	return captureMask;
     }
 
+    //legal moves for the piece on pos, decoded from the packed generator for the console and gui
+    //underpromotions are left out, the console always promotes to a queen
+    public List<ChessMove> pieceMoves(int pos) {
+	List<ChessMove> moves = new LinkedList<>();
+	int color = colorAtPosition(pos);
+	if (color == 0) return moves;
+	int[] codes = new int[32];
+	int n = legalMoves(color, 1L<<pos, codes, 0);
+	for (int i=0; i<n; i++) {
+	    int promotion = ChessMove.promotionOf(codes[i]);
+	    if (promotion==EMPTY || promotion==QUEEN) moves.add(new ChessMove(ChessMove.startOf(codes[i]), ChessMove.endOf(codes[i]), ChessMove.isCapture(codes[i])));
+	}
+	return moves;
+    }
+
     //it may seem convoluted to generate masks, turn them into lists of moves, then convert them back to masks, but its more effecient to store the list because they maintain origin and capture imformation, and regeneration to resotre that information is extremely costly
-    public List<ChessMove>  pieceMoves(int pos) {
+    //the original generator: pseudo legal masks, then every move is tried with filterSafe
+    //kept as the reference the packed generator is checked against (see ChessMoveGenCheck)
+    public List<ChessMove> trialMoves(int pos) {
 	List<ChessMove> moves = new LinkedList<>();
 	int color = colorAtPosition(pos);
 	if (color == 0) return moves;
@@ -382,8 +885,10 @@ public class ChessBoard {
 	switch (type) {
 	case PAWN:
 	    moveMask = Chess.pawnMasks[pos][1-color] & ~all;
+	    //no double push over a piece
+	    if (((1L<<(pos+8*color)) & all)!=0L) moveMask = 0L;
 	    captureMask = Chess.pawnMasks[pos][2-color] & opp;
-	    captureMask |= Chess.passantMask(color, passant, pos);
+	    if (passant!=-1 && ((1L<<passant) & opp)!=0L) captureMask |= Chess.passantMask(color, passant, pos);
 	    break;
 	case KNIGHT:
 	    moveMask = Chess.knightMasks[pos] & ~all;
@@ -435,15 +940,220 @@ public class ChessBoard {
 	    .collect(Collectors.toList());
     }
     //return only moves safe for pieces of given color
+    //each move is tried on this board and taken back, rather than on a clone
     public List<ChessMove> filterSafe(List<ChessMove> moves, int color) {
 	return moves.stream()
 	    .filter(cm -> {
-		    ChessBoard c = clone();
-		    c.makeMove(cm);
-		    return c.attacking(c.getKingIndex(color), -color)==0L;})
+		    makeMove(toCode(cm));
+		    boolean safe = !inCheck(color);
+		    unmakeMove();
+		    return safe;})
 	    .collect(Collectors.toList());
     }
 	
+    /*
+     *allocation free move generation
+     *legal moves are written as packed codes (see ChessMove.encode) into a caller owned array
+     *starting at index n, and the new number of moves is returned. no lists, no boxing, no clones
+     */
+    public int legalMoves(int color, int[] moves, int n) {
+	return legalMoves(color, -1L, moves, n);
+    }
+
+    public int legalMoves(int color, ChessMoveBuffer buffer) {
+	buffer.size = legalMoves(color, buffer.moves, 0);
+	return buffer.size;
+    }
+
+    //all legal moves for the pieces of color on the squares in from
+    public int legalMoves(int color, long from, int[] moves, int n) {
+	return legalMoves(color, from, -1L, moves, n);
+    }
+
+    //whether code is legal here, for moves that don't come straight from the generator (hash table, killers).
+    //only the moving piece's moves onto the end square are generated to check it
+    public boolean isLegalMove(int code) {
+	int start = ChessMove.startOf(code);
+	int color = colorAtPosition(start);
+	if (color==0 || color!=turn || ChessMove.typeOf(code)!=typeAtPosition(start)) return false;
+	int n = legalMoves(color, 1L<<start, 1L<<ChessMove.endOf(code), scratch, 0);
+	for (int i=0; i<n; i++) if (scratch[i]==code) return true;
+	return false;
+    }
+
+    //whether color has a legal move at all, for telling mate and stalemate from a game going on. goes a piece
+    //at a time and stops at the first that can move, king first, since in check it is usually the one that can
+    public boolean hasAnyLegalMove(int color) {
+	int king = getKingIndex(color);
+	if (legalMoves(color, 1L<<king, scratch, 0)!=0) return true;
+	for (long pieces = getByColor(color) & ~(1L<<king); pieces != 0L; pieces &= pieces-1)
+	    if (legalMoves(color, pieces & -pieces, scratch, 0)!=0) return true;
+	return false;
+    }
+
+    //the last rank for color's pawns
+    public static long promotionRank(int color) {
+	return color==WHITE? 0xFF00000000000000L: 0xFFL;
+    }
+
+    public int pieceMoves(int pos, int[] moves, int n) {
+	int color = colorAtPosition(pos);
+	if (color == 0) return n;
+	return legalMoves(color, 1L<<pos, moves, n);
+    }
+
+    /*
+     *legal moves for the pieces of color on the squares in from, landing on the squares in to
+     *(en passant counts as landing on the taken pawn's square as well as behind it). checkers, the check blocking mask and pinned pieces are worked out once up front,
+     *so no move is ever played to test it. only en passant, which can uncover a check along
+     *the rank by taking two pawns off it at once, still gets the scratch bitboard test in isLegal
+     */
+    public int legalMoves(int color, long from, long to, int[] moves, int n) {
+	int king = getKingIndex(color);
+	long own = getByColor(color);
+	long opp = getByColor(-color);
+	long all = own | opp;
+	long checkers = attacking(king, -color);
+
+	//king steps are tested with the king lifted off the board, so it can't shelter behind itself
+	if (((1L<<king) & from) != 0L) {
+	    long targets = Chess.kingMasks[king] & ~own & to;
+	    long occ = all & ~(1L<<king);
+	    while (targets != 0L) {
+		int end = Long.numberOfTrailingZeros(targets);
+		targets &= targets-1;
+		if (attacking(end, -color, occ, 0L)==0L)
+		    moves[n++] = ChessMove.encode(king, end, KING, capturedAt(end, opp), EMPTY, 0);
+	    }
+	    if (checkers==0L) n = castleMoves(color, king, all, to, moves, n);
+	}
+	//in double check only the king can move
+	if (Long.bitCount(checkers) > 1) return n;
+
+	//everyone else has to take the checker or step in its way, if there is one
+	long checkMask = -1L;
+	if (checkers != 0L) checkMask = checkers | Chess.betweenMasks[king][Long.numberOfTrailingZeros(checkers)];
+	long pinned = pinned(color, king, own, opp);
+
+	long pieces = own & from & ~(1L<<king);
+	while (pieces != 0L) {
+	    int pos = Long.numberOfTrailingZeros(pieces);
+	    pieces &= pieces-1;
+	    long allowed = checkMask;
+	    //a pinned piece may only slide along the line through its king
+	    if (((1L<<pos) & pinned) != 0L) allowed &= Chess.lineMasks[king][pos];
+	    int type = typeAtPosition(pos);
+	    long targets;
+	    switch (type) {
+	    case PAWN:
+		n = pawnMoves(color, pos, allowed, to, opp, all, moves, n);
+		continue;
+	    case KNIGHT:
+		targets = Chess.knightMasks[pos];
+		break;
+	    case BISHOP:
+		targets = Chess.bishopMask(all, pos);
+		break;
+	    case ROOK:
+		targets = Chess.rookMask(all, pos);
+		break;
+	    case QUEEN:
+		targets = Chess.queenMask(all, pos);
+		break;
+	    default:
+		continue;
+	    }
+	    targets &= ~own & allowed & to;
+	    while (targets != 0L) {
+		int end = Long.numberOfTrailingZeros(targets);
+		targets &= targets-1;
+		moves[n++] = ChessMove.encode(pos, end, type, capturedAt(end, opp), EMPTY, 0);
+	    }
+	}
+	return n;
+    }
+
+    private int capturedAt(int pos, long opp) {
+	return ((1L<<pos) & opp)!=0L? typeAtPosition(pos): EMPTY;
+    }
+
+    //own pieces standing alone between their king and an enemy slider, found by looking through them
+    private long pinned(int color, int king, long own, long opp) {
+	long pinned = 0L;
+	long snipers = (Chess.rookMask(opp, king) & (bbPieces(-color, ROOK) | bbPieces(-color, QUEEN)))
+	    | (Chess.bishopMask(opp, king) & (bbPieces(-color, BISHOP) | bbPieces(-color, QUEEN)));
+	while (snipers != 0L) {
+	    int sniper = Long.numberOfTrailingZeros(snipers);
+	    snipers &= snipers-1;
+	    long between = Chess.betweenMasks[king][sniper] & (own | opp);
+	    if (Long.bitCount(between)==1 && (between & own) != 0L) pinned |= between;
+	}
+	return pinned;
+    }
+
+    private int pawnMoves(int color, int pos, long allowed, long to, long opp, long all, int[] moves, int n) {
+	int forward = pos + 8*color;
+	long passantTo = to;
+	allowed &= to;
+	if (((1L<<forward) & all)==0L) {
+	    if (((1L<<forward) & allowed)!=0L) n = addPawnMove(pos, forward, EMPTY, moves, n);
+	    //double push only if both squares are free
+	    int twice = forward + 8*color;
+	    if (pos/8==(color==WHITE? 1: 6) && ((1L<<twice) & all)==0L && ((1L<<twice) & allowed)!=0L)
+		moves[n++] = ChessMove.encode(pos, twice, PAWN, EMPTY, EMPTY, ChessMove.DOUBLE_PUSH);
+	}
+	long captures = Chess.pawnMasks[pos][2-color] & opp & allowed;
+	while (captures != 0L) {
+	    int end = Long.numberOfTrailingZeros(captures);
+	    captures &= captures-1;
+	    n = addPawnMove(pos, end, typeAtPosition(end), moves, n);
+	}
+	if (passant!=-1 && passant/8==pos/8 && Math.abs(passant-pos)==1 && ((1L<<passant) & opp)!=0L
+	    && (passantTo & ((1L<<passant) | (1L<<(passant + 8*color)))) != 0L) {
+	    int code = ChessMove.encode(pos, passant + 8*color, PAWN, PAWN, EMPTY, ChessMove.PASSANT);
+	    if (isLegal(color, code)) moves[n++] = code;
+	}
+	return n;
+    }
+
+    //pawn moves onto the last rank come in four flavours, queen first
+    private int addPawnMove(int pos, int end, int captured, int[] moves, int n) {
+	if (end/8 != 0 && end/8 != 7) {
+	    moves[n++] = ChessMove.encode(pos, end, PAWN, captured, EMPTY, 0);
+	    return n;
+	}
+	for (int promotion=QUEEN; promotion>PAWN; promotion--)
+	    moves[n++] = ChessMove.encode(pos, end, PAWN, captured, promotion, 0);
+	return n;
+    }
+
+    //castling straight off the bitboards: rights, rook in its corner, empty path, and no attacked square
+    //for the king to cross or land on (one and with the cached attack map). only called when not in check
+    private int castleMoves(int color, int king, long all, long to, int[] moves, int n) {
+	int position = (color==WHITE? 3: 59);
+	if (king != position) return n;
+	long rooks = bbPieces(color, ROOK);
+	long attacked = attackedBy(-color);
+	if (((1L<<(position-2)) & to)!=0L && castleRight(color, true) && (rooks & (1L<<(position-3)))!=0L && (all & (0b110L<<(position-3)))==0L
+	    && (attacked & (0b11L<<(position-2)))==0L)
+	    moves[n++] = ChessMove.encode(position, position-2, KING, EMPTY, EMPTY, ChessMove.CASTLE);
+	if (((1L<<(position+2)) & to)!=0L && castleRight(color, false) && (rooks & (1L<<(position+4)))!=0L && (all & (0b1110000L<<(position-3)))==0L
+	    && (attacked & (0b11L<<(position+1)))==0L)
+	    moves[n++] = ChessMove.encode(position, position+2, KING, EMPTY, EMPTY, ChessMove.CASTLE);
+	return n;
+    }
+
+    //whether a packed move leaves its own king safe, worked out on scratch bitboards instead of playing it
+    public boolean isLegal(int color, int code) {
+	int start = ChessMove.startOf(code);
+	int end = ChessMove.endOf(code);
+	long endBit = 1L<<end;
+	long removed = ChessMove.isPassant(code)? 1L<<(end - 8*color): endBit;
+	long occ = ((getAll() & ~(1L<<start)) & ~removed) | endBit;
+	int king = ChessMove.typeOf(code)==KING? end: getKingIndex(color);
+	return attacking(king, -color, occ, removed)==0L;
+    }
+
     public static void main(String[] a) {
 	ChessBoard b = new ChessBoard();
 	b.place(WHITE, PAWN, "d7");
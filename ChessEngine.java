@@ -0,0 +1,486 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/*
+ *picks moves: principal variation alpha-beta with a capture-only quiescence search at the leaves,
+ *run by iterative deepening until a depth, time or node limit, or stop(), ends it.
+ *the limits are checked every 256 nodes, well under a millisecond at any speed the search runs at,
+ *and a cut off iteration is thrown away in favour of the last one that finished.
+ *
+ *with more than one thread it is a lazy smp search: helper engines search the same root on their own board copies
+ *until the main one is done, sharing nothing but the transposition table. every other helper searches one ply deeper,
+ *and each tries the root moves in a different order, so they fill the table with entries the main search can use
+ */
+public class ChessEngine {
+    public static final int INFINITE = 32000;
+    public static final int MATE = 31000;
+    //scores past this are mates, MATE minus the plies to mate
+    public static final int MATE_BOUND = MATE - 1000;
+    public static final int MAX_PLY = 128;
+
+    //by piece type, PAWN to KING
+    public static final int[] VALUES = new int[] {100, 330, 320, 500, 900, 0};
+
+    public final ChessTransposition table;
+    //called with the result of every finished iteration
+    public Consumer<Result> listener;
+
+    public final ChessMoveOrder ordering = new ChessMoveOrder();
+    public final ChessPawns pawns = new ChessPawns();
+    //looked at before each search: a book move, picked by weight, is played at once at depth 0
+    public ChessBook book;
+    final Random bookRandom = new Random();
+    //endgame tables, probed at every node with few enough pieces, and at the root for the move to play
+    public ChessTablebase tablebase;
+
+    //per ply scratch, reused from search to search so the search never allocates
+    final ChessMovePicker[] pickers = new ChessMovePicker[MAX_PLY];
+    //quiet moves searched so far at each ply, their history drops if a later one cuts off
+    final int[][] quiets = new int[MAX_PLY][ChessMoveBuffer.CAPACITY];
+    //the move played at each ply on the current path
+    final int[] played = new int[MAX_PLY+1];
+    final int[][] pv = new int[MAX_PLY+1][MAX_PLY+1];
+    final int[] pvLength = new int[MAX_PLY+1];
+    //keys of the positions on the path from the root, for repetitions
+    final long[] path = new long[MAX_PLY+1];
+    //for tablebase probes, which come one at a time
+    final int[] probeSquares = new int[ChessTablebase.MAX_PIECES];
+    final int[] probeMoves = new int[ChessMoveBuffer.CAPACITY];
+
+    ChessBoard board;
+    //the game so far, if the board searched came with a history that is up to date
+    ChessMoveHistory game;
+    long nodes;
+    long startTime;
+    long deadline;
+    long nodeLimit;
+    //depth 1 always finishes, so there is a move to play however tight the limits
+    boolean mayAbort;
+    boolean aborted;
+    volatile boolean stop;
+
+    //0 for the main search, helpers count up from 1
+    final int id;
+    ChessEngine[] helpers = new ChessEngine[0];
+    ExecutorService pool;
+
+    public ChessEngine(ChessTransposition table) {
+	this(table, 0);
+    }
+
+    ChessEngine(ChessTransposition table, int id) {
+	this.table = table;
+	this.id = id;
+	for (int i=0; i<MAX_PLY; i++) pickers[i] = new ChessMovePicker();
+    }
+
+    public ChessEngine(int hashMB) {
+	this(new ChessTransposition(hashMB));
+    }
+
+    //what one iteration found
+    public static class Result {
+	public final int move;
+	public final int score;
+	public final int depth;
+	public final int[] pv;
+	public final long nodes;
+	public final long nanos;
+
+	Result(int move, int score, int depth, int[] pv, long nodes, long nanos) {
+	    this.move = move;
+	    this.score = score;
+	    this.depth = depth;
+	    this.pv = pv;
+	    this.nodes = nodes;
+	    this.nanos = nanos;
+	}
+
+	public ChessMove bestMove() {
+	    return move==0? null: new ChessMove(move);
+	}
+
+	public long nps() {
+	    return nodes*1000000000L/Math.max(1L, nanos);
+	}
+
+	public String pvString() {
+	    String s = "";
+	    for (int m: pv) s += (s.isEmpty()? "": " ") + ChessMove.codeToUci(m);
+	    return s;
+	}
+
+	public String toString() {
+	    return String.format("depth %2d score %-9s nodes %,12d nps %,10d time %6dms pv %s",
+				 depth, scoreString(score), nodes, nps(), nanos/1000000, pvString());
+	}
+    }
+
+    //"cp 23", or "mate 3"/"mate -2" in moves for the side to move
+    public static String scoreString(int score) {
+	if (score > MATE_BOUND) return "mate " + (MATE - score + 1)/2;
+	if (score < -MATE_BOUND) return "mate " + -(MATE + score)/2;
+	return "cp " + score;
+    }
+
+    //threads searching together, including this one
+    public void setThreads(int threads) {
+	threads = Math.max(1, threads);
+	if (threads==helpers.length+1) return;
+	if (pool!=null) pool.shutdown();
+	pool = null;
+	helpers = new ChessEngine[threads-1];
+	for (int i=0; i<helpers.length; i++) helpers[i] = new ChessEngine(table, i+1);
+	if (helpers.length>0) {
+	    pool = Executors.newFixedThreadPool(helpers.length, r -> {
+		    Thread t = new Thread(r, "search helper");
+		    t.setDaemon(true);
+		    return t;
+		});
+	}
+    }
+
+    public int getThreads() {
+	return helpers.length+1;
+    }
+
+    //nodes searched so far by this engine and its helpers
+    public long totalNodes() {
+	long total = nodes;
+	for (ChessEngine helper: helpers) total += helper.nodes;
+	return total;
+    }
+
+    /*
+     *searches b (which is left alone, but mustn't be changed until this returns) for its side to move.
+     *maxDepth, millis or maxNodes of 0 mean no limit. the node limit counts the main thread's nodes only
+     */
+    public Result search(ChessBoard b, int maxDepth, long millis, long maxNodes) {
+	if (book!=null) {
+	    int move = book.pick(b, bookRandom);
+	    if (move!=0) {
+		Result r = new Result(move, 0, 0, new int[] {move}, 0L, 0L);
+		if (listener!=null) listener.accept(r);
+		return r;
+	    }
+	}
+	if (tablebase!=null) {
+	    int move = tablebase.bestMove(b);
+	    if (move!=0) {
+		Result r = new Result(move, tablebase.probe(b), 0, new int[] {move}, 0L, 0L);
+		if (listener!=null) listener.accept(r);
+		return r;
+	    }
+	}
+	stop = false;
+	table.newSearch();
+	Future<?>[] running = new Future<?>[helpers.length];
+	for (int i=0; i<helpers.length; i++) {
+	    ChessEngine helper = helpers[i];
+	    helper.stop = false;
+	    helper.tablebase = tablebase;
+	    running[i] = pool.submit(() -> helper.iterate(b, MAX_PLY-1, 0L, 0L));
+	}
+	Result result = null;
+	try {
+	    result = iterate(b, maxDepth, millis, maxNodes);
+	} finally {
+	    for (ChessEngine helper: helpers) helper.stop();
+	    //every helper is waited for, and the first failure kept. if the main search is throwing already (result still
+	    //null), that one goes on and a helper's is dropped
+	    Throwable failure = null;
+	    boolean interrupted = false;
+	    for (Future<?> f: running) {
+		try {
+		    f.get();
+		} catch (ExecutionException e) {
+		    if (failure==null) failure = e.getCause();
+		} catch (InterruptedException e) {
+		    interrupted = true;
+		    if (failure==null) failure = e;
+		}
+	    }
+	    if (interrupted) Thread.currentThread().interrupt();
+	    if (failure!=null && result!=null) {
+		if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+		if (failure instanceof Error) throw (Error) failure;
+		throw new RuntimeException(failure);
+	    }
+	}
+	return result;
+    }
+
+    Result iterate(ChessBoard b, int maxDepth, long millis, long maxNodes) {
+	board = new ChessBoard(b);
+	game = b.history!=null && b.history.isCurrent()? b.history: null;
+	nodes = 0L;
+	startTime = System.nanoTime();
+	deadline = millis>0? startTime + millis*1000000L: Long.MAX_VALUE;
+	nodeLimit = maxNodes>0? maxNodes: Long.MAX_VALUE;
+	if (maxDepth<=0 || maxDepth>=MAX_PLY) maxDepth = MAX_PLY-1;
+	mayAbort = false;
+	aborted = false;
+	ordering.newSearch();
+
+	Result result = null;
+	for (int depth=1; depth<=maxDepth; depth++) {
+	    int score = search(Math.min(depth + (id&1), MAX_PLY-1), 0, -INFINITE, INFINITE);
+	    if (aborted) break;
+	    result = new Result(pvLength[0]>0? pv[0][0]: 0, score, depth, Arrays.copyOf(pv[0], pvLength[0]),
+				totalNodes(), System.nanoTime()-startTime);
+	    if (listener!=null) listener.accept(result);
+	    mayAbort = true;
+	    //no legal move, or a forced mate the search has already seen to the end of
+	    if (result.move==0 || Math.abs(score) > MATE_BOUND && MATE - Math.abs(score) <= depth) break;
+	    if (stop || System.nanoTime() >= deadline || nodes >= nodeLimit) break;
+	}
+	return result;
+    }
+
+    public Result search(ChessBoard b, int maxDepth) {
+	return search(b, maxDepth, 0L, 0L);
+    }
+
+    //ends the running search as soon as it next checks its limits, from any thread
+    public void stop() {
+	stop = true;
+    }
+
+    private void checkLimits() {
+	if (mayAbort && (stop || System.nanoTime() >= deadline || nodes >= nodeLimit)) aborted = true;
+    }
+
+    private boolean inCheck() {
+	return board.attacking(board.getKingIndex(board.turn), -board.turn) != 0L;
+    }
+
+    //piece-square totals off the board plus the (mostly cached) pawn structure, for the side to move
+    int evaluate() {
+	return ChessEval.evaluate(board) + pawns.evaluate(board);
+    }
+
+    //mate scores are stored relative to the node, not the root
+    static int toTable(int score, int ply) {
+	return score > MATE_BOUND? score + ply: score < -MATE_BOUND? score - ply: score;
+    }
+    static int fromTable(int score, int ply) {
+	return score > MATE_BOUND? score - ply: score < -MATE_BOUND? score + ply: score;
+    }
+
+    int search(int depth, int ply, int alpha, int beta) {
+	pvLength[ply] = ply;
+	if ((++nodes & 255) == 0) checkLimits();
+	if (aborted) return 0;
+	long key = board.getKey();
+	if (ply>0) {
+	    //a repetition on the way here, or of a position from earlier in the game, is scored as a draw
+	    for (int i=ply-2; i>=0; i-=2) if (path[i]==key) return 0;
+	    if (game!=null && game.occurrences(key)>0) return 0;
+	    if (tablebase!=null) {
+		int score = tablebase.probe(board, probeSquares, probeMoves);
+		if (score!=ChessTablebase.UNKNOWN) return fromTable(score, ply);
+	    }
+	}
+	path[ply] = key;
+	if (ply>=MAX_PLY-1) return evaluate();
+	boolean inCheck = inCheck();
+	if (inCheck) depth++;
+	if (depth<=0) return quiesce(ply, alpha, beta);
+
+	long entry = table.probe(key);
+	int hashMove = ChessTransposition.moveOf(entry);
+	if (entry!=0L && ply>0 && ChessTransposition.depthOf(entry) >= depth) {
+	    int score = fromTable(ChessTransposition.scoreOf(entry), ply);
+	    int bound = ChessTransposition.boundOf(entry);
+	    if (bound==ChessTransposition.EXACT
+		|| bound==ChessTransposition.LOWER && score>=beta
+		|| bound==ChessTransposition.UPPER && score<=alpha) return score;
+	}
+
+	int color = board.turn;
+	int previous = ply>0? played[ply-1]: 0;
+	ChessMovePicker picker = pickers[ply];
+	//helpers each start from a different root move after the hash move
+	if (ply==0) picker.initRoot(board, ordering, hashMove, id);
+	else picker.init(board, ordering, hashMove, ply, previous);
+
+	int originalAlpha = alpha;
+	int bestScore = -INFINITE;
+	int bestMove = 0;
+	int tried = 0;
+	int move;
+	for (int i=0; (move = picker.next()) != 0; i++) {
+	    played[ply] = move;
+	    board.makeMove(move);
+	    int score;
+	    if (i==0) {
+		score = -search(depth-1, ply+1, -beta, -alpha);
+	    } else {
+		//prove the move is no better than the best so far with a null window, search it fully if it is
+		score = -search(depth-1, ply+1, -alpha-1, -alpha);
+		if (score>alpha && score<beta) score = -search(depth-1, ply+1, -beta, -alpha);
+	    }
+	    board.unmakeMove();
+	    if (aborted) return 0;
+	    if (score > bestScore) {
+		bestScore = score;
+		bestMove = move;
+		if (score > alpha) {
+		    alpha = score;
+		    pv[ply][ply] = move;
+		    System.arraycopy(pv[ply+1], ply+1, pv[ply], ply+1, pvLength[ply+1]-ply-1);
+		    pvLength[ply] = Math.max(ply+1, pvLength[ply+1]);
+		    if (score >= beta) {
+			ordering.cutoff(move, ply, depth, previous, color, quiets[ply], tried);
+			break;
+		    }
+		}
+	    }
+	    if (ChessMoveOrder.isQuiet(move)) quiets[ply][tried++] = move;
+	}
+	if (bestMove==0) return inCheck? -MATE + ply: 0;
+	int bound = bestScore>=beta? ChessTransposition.LOWER: bestScore>originalAlpha? ChessTransposition.EXACT: ChessTransposition.UPPER;
+	table.store(key, bound==ChessTransposition.UPPER? 0: bestMove, toTable(bestScore, ply), depth, bound);
+	return bestScore;
+    }
+
+    //captures and queen promotions only, until the position is quiet
+    int quiesce(int ply, int alpha, int beta) {
+	pvLength[ply] = ply;
+	if ((++nodes & 255) == 0) checkLimits();
+	if (aborted) return 0;
+	int stand = evaluate();
+	if (ply>=MAX_PLY-1 || stand>=beta) return stand;
+	if (stand>alpha) alpha = stand;
+
+	ChessMovePicker picker = pickers[ply];
+	picker.initQuiescence(board);
+	int bestScore = stand;
+	int move;
+	while ((move = picker.next()) != 0) {
+	    board.makeMove(move);
+	    int score = -quiesce(ply+1, -beta, -alpha);
+	    board.unmakeMove();
+	    if (aborted) return 0;
+	    if (score > bestScore) {
+		bestScore = score;
+		if (score > alpha) {
+		    alpha = score;
+		    if (score >= beta) break;
+		}
+	    }
+	}
+	return bestScore;
+    }
+
+    //rotates list[from, to) left by k, in place
+    static void rotate(int[] list, int from, int to, int k) {
+	reverse(list, from, from+k);
+	reverse(list, from+k, to);
+	reverse(list, from, to);
+    }
+    static void reverse(int[] list, int from, int to) {
+	for (int i=from, j=to-1; i<j; i++, j--) {
+	    int t = list[i];
+	    list[i] = list[j];
+	    list[j] = t;
+	}
+    }
+
+    /*
+     *time to depth on the perft positions for each thread count in counts, with a fresh table every run,
+     *so the gain from more threads can be read off directly
+     */
+    public static void scaling(int depth, int hash, int[] counts) {
+	pr(String.format("time to depth %d over %d positions, %dMB table, %d cores", depth, ChessPerft.POSITIONS.length,
+			 hash, Runtime.getRuntime().availableProcessors()));
+	pr(String.format("%8s %10s %8s %14s %12s", "threads", "time", "speedup", "nodes", "nps"));
+	//one untimed pass first, so the jit has compiled the search before the first row is measured
+	ChessEngine warmup = new ChessEngine(hash);
+	for (String fen: ChessPerft.POSITIONS) warmup.search(ChessBoard.fromFen(fen), depth);
+	long base = 0L;
+	for (int threads: counts) {
+	    ChessEngine engine = new ChessEngine(hash);
+	    engine.setThreads(threads);
+	    long nanos = 0L;
+	    long nodes = 0L;
+	    for (String fen: ChessPerft.POSITIONS) {
+		engine.table.clear();
+		Result r = engine.search(ChessBoard.fromFen(fen), depth);
+		nanos += r.nanos;
+		nodes += engine.totalNodes();
+	    }
+	    engine.setThreads(1);
+	    if (base==0L) base = nanos;
+	    pr(String.format("%8d %8dms %7.2fx %,14d %,12d", threads, nanos/1000000, (double) base/nanos, nodes,
+			     nodes*1000000000L/Math.max(1L, nanos)));
+	}
+    }
+
+    //java ChessEngine [-fen "..."] [-depth d] [-time ms] [-nodes n] [-hash mb] [-threads n] [-book file.bin] [-tables dir]
+    //java ChessEngine -scaling [-depth d] [-hash mb]: time to depth at 1, 2, 4, 8, 16 and 32 threads
+    public static void main(String[] args) throws IOException {
+	String fen = null;
+	int depth = 0;
+	long time = 0L;
+	long maxNodes = 0L;
+	int hash = 64;
+	int threads = 1;
+	boolean scaling = false;
+	String book = null;
+	String tables = null;
+	for (int i=0; i<args.length; i++) {
+	    if (args[i].equals("-fen")) fen = args[++i];
+	    else if (args[i].equals("-depth")) depth = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-time")) time = Long.parseLong(args[++i]);
+	    else if (args[i].equals("-nodes")) maxNodes = Long.parseLong(args[++i]);
+	    else if (args[i].equals("-hash")) hash = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-threads")) threads = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-scaling")) scaling = true;
+	    else if (args[i].equals("-book")) book = args[++i];
+	    else if (args[i].equals("-tables")) tables = args[++i];
+	}
+	if (scaling) {
+	    scaling(depth>0? depth: 7, hash, new int[] {1, 2, 4, 8, 16, 32});
+	    return;
+	}
+	if (depth==0 && time==0L && maxNodes==0L) time = 5000L;
+	ChessBoard b;
+	if (fen==null) {
+	    b = new ChessBoard();
+	    b.setup();
+	} else {
+	    b = ChessBoard.fromFen(fen);
+	}
+	pr(b);
+	ChessEngine engine = new ChessEngine(hash);
+	engine.setThreads(threads);
+	if (book!=null) engine.book = new ChessBook(Paths.get(book));
+	if (tables!=null) engine.tablebase = new ChessTablebase(Paths.get(tables));
+	engine.listener = r -> pr(r);
+	long start = System.nanoTime();
+	Result r = engine.search(b, depth, time, maxNodes);
+	long elapsed = System.nanoTime()-start;
+	pr("bestmove " + (r.move==0? "(none)": ChessMove.codeToUci(r.move)) + " after " + elapsed/1000000 + "ms");
+	pr(engine.table.stats());
+	pr(engine.pawns.stats());
+	long picked = 0L;
+	long quiet = 0L;
+	for (ChessMovePicker picker: engine.pickers) {
+	    picked += picker.nodes;
+	    quiet += picker.quietNodes;
+	}
+	pr(String.format("quiet moves generated at %,d of %,d interior nodes (%.1f%%)", quiet, picked, 100.0*quiet/Math.max(1L, picked)));
+    }
+
+    static void pr(Object o) {
+	System.out.println(o);
+    }
+}
@@ -0,0 +1,282 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/*
+ *runs an epd suite. every line is a position (the first four fen fields) and then operations split by semicolons:
+ *bm and am (best and avoid moves, in san) make it a search test, id names it, and D1 20 ;D2 400 ... (the perftsuite
+ *format) make it a perft test. a position with neither is just searched and reported.
+ *a fixed set of worker threads each own a board and an engine, and take the next position off a shared counter,
+ *so a suite of thousands spreads evenly over them however long each position takes
+ */
+public class ChessEpd {
+    public static class Position {
+	public final int line;
+	public final String fen;
+	public String id;
+	public final List<String> bestMoves = new ArrayList<>();
+	public final List<String> avoidMoves = new ArrayList<>();
+	//perft[d] is the expected count at depth d, 0 when not given
+	public long[] perft = new long[0];
+	//why the line couldn't be read, null if it could. such a position comes out as an ERROR
+	public String error;
+
+	Position(int line, String fen) {
+	    this.line = line;
+	    this.fen = fen;
+	}
+
+	boolean isSearchTest() {
+	    return !bestMoves.isEmpty() || !avoidMoves.isEmpty();
+	}
+    }
+
+    //FAIL and ERROR positions fail the run, NONE ones had nothing to check
+    public enum Verdict {PASS, FAIL, NONE, ERROR}
+
+    public static class Outcome {
+	public final Position position;
+	public final Verdict verdict;
+	public final String detail;
+	public final long nodes;
+	public final long nanos;
+
+	Outcome(Position position, Verdict verdict, String detail, long nodes, long nanos) {
+	    this.position = position;
+	    this.verdict = verdict;
+	    this.detail = detail;
+	    this.nodes = nodes;
+	    this.nanos = nanos;
+	}
+
+	public String toString() {
+	    String name = position.id!=null? position.id: "line " + position.line;
+	    return String.format("%-5s %-16s %s (%,d nodes, %dms)", verdict, name, detail, nodes, nanos/1000000);
+	}
+    }
+
+    //one line of epd, or null for blank lines and comments. a malformed line gives a position with its error set,
+    //so one bad line fails on its own instead of stopping the whole suite from loading
+    public static Position parse(String line, int number) {
+	line = line.trim();
+	if (line.isEmpty() || line.startsWith("#")) return null;
+	try {
+	    return read(line, number);
+	} catch (IllegalArgumentException iae) {
+	    Position p = new Position(number, line);
+	    p.error = iae.getMessage();
+	    return p;
+	}
+    }
+
+    private static Position read(String line, int number) {
+	String[] parts = line.split("\\s+", 5);
+	if (parts.length<4) throw new IllegalArgumentException("not an epd position");
+	String fen = parts[0] + " " + parts[1] + " " + parts[2] + " " + parts[3];
+	String rest = parts.length>4? parts[4]: "";
+	String clocks = " 0 1";
+	String id = null;
+	List<String> best = new ArrayList<>();
+	List<String> avoid = new ArrayList<>();
+	long[] perft = new long[0];
+	for (String op: rest.split(";")) {
+	    String[] words = op.trim().split("\\s+", 2);
+	    String code = words[0];
+	    String operands = words.length>1? words[1].trim(): "";
+	    if (code.isEmpty()) continue;
+	    if (code.matches("\\d+") && operands.matches("\\d+")) {
+		//a full fen's move clocks, which perftsuite files keep before the first semicolon
+		clocks = " " + code + " " + operands;
+	    } else if (code.equals("bm")) {
+		best.addAll(Arrays.asList(operands.split("\\s+")));
+	    } else if (code.equals("am")) {
+		avoid.addAll(Arrays.asList(operands.split("\\s+")));
+	    } else if (code.equals("id")) {
+		id = operands.replace("\"", "");
+	    } else if (code.matches("D\\d+") && operands.matches("\\d+")) {
+		int depth = Integer.parseInt(code.substring(1));
+		if (depth>=perft.length) perft = Arrays.copyOf(perft, depth+1);
+		perft[depth] = Long.parseLong(operands);
+	    }
+	}
+	Position p = new Position(number, fen + clocks);
+	p.id = id;
+	p.bestMoves.addAll(best);
+	p.avoidMoves.addAll(avoid);
+	p.perft = perft;
+	return p;
+    }
+
+    public static List<Position> load(String file) throws IOException {
+	List<Position> positions = new ArrayList<>();
+	int number = 0;
+	for (String line: Files.readAllLines(Paths.get(file))) {
+	    Position p = parse(line, ++number);
+	    if (p!=null) positions.add(p);
+	}
+	return positions;
+    }
+
+    final int threads;
+    final int hashMB;
+    //search limits per position, 0 for none
+    public int depth;
+    public long millis;
+    public long maxNodes;
+    //perft tests are only run this deep, the deeper counts in a suite can take minutes each
+    public int maxPerftDepth = 4;
+    //called from the worker threads as each position finishes, in whatever order they finish
+    public Consumer<Outcome> listener;
+
+    //single threaded counts only, so no pool
+    final ChessPerft perft = new ChessPerft(0, 0);
+    final LongAdder nodes = new LongAdder();
+
+    public ChessEpd(int threads, int hashMB) {
+	this.threads = Math.max(1, threads);
+	this.hashMB = hashMB;
+    }
+
+    //runs every position and returns the outcomes in suite order
+    public Outcome[] run(List<Position> positions) throws InterruptedException {
+	Outcome[] outcomes = new Outcome[positions.size()];
+	AtomicInteger next = new AtomicInteger();
+	Thread[] workers = new Thread[Math.min(threads, Math.max(1, positions.size()))];
+	for (int t=0; t<workers.length; t++) {
+	    workers[t] = new Thread(() -> {
+		    ChessBoard board = new ChessBoard();
+		    ChessEngine engine = new ChessEngine(hashMB);
+		    for (int i = next.getAndIncrement(); i < outcomes.length; i = next.getAndIncrement()) {
+			//a position that throws, in the search or the listener, is an ERROR like a bad fen, and the worker
+			//goes on to the next one
+			try {
+			    outcomes[i] = run(positions.get(i), board, engine);
+			    nodes.add(outcomes[i].nodes);
+			    if (listener!=null) listener.accept(outcomes[i]);
+			} catch (RuntimeException e) {
+			    outcomes[i] = new Outcome(positions.get(i), Verdict.ERROR, e.toString(), 0L, 0L);
+			}
+		    }
+	    }, "epd worker " + t);
+	    workers[t].start();
+	}
+	for (Thread w: workers) w.join();
+	return outcomes;
+    }
+
+    Outcome run(Position p, ChessBoard board, ChessEngine engine) {
+	long start = System.nanoTime();
+	if (p.error!=null) return new Outcome(p, Verdict.ERROR, p.error, 0L, 0L);
+	try {
+	    board.setFen(p.fen);
+	} catch (IllegalArgumentException iae) {
+	    return new Outcome(p, Verdict.ERROR, iae.getMessage(), 0L, 0L);
+	}
+	if (p.perft.length>0 && !p.isSearchTest()) {
+	    long total = 0L;
+	    String detail = "";
+	    for (int d=1; d<p.perft.length && d<=maxPerftDepth; d++) {
+		if (p.perft[d]==0L) continue;
+		long count = perft.perft(board, d);
+		total += count;
+		detail += " D" + d + " " + count;
+		if (count!=p.perft[d])
+		    return new Outcome(p, Verdict.FAIL, "perft" + detail + ", expected " + p.perft[d], total, System.nanoTime()-start);
+	    }
+	    return new Outcome(p, Verdict.PASS, "perft" + detail, total, System.nanoTime()-start);
+	}
+
+	//the suite's moves are read against the position before the search, which starts from a copy of it
+	List<Integer> best = new ArrayList<>();
+	List<Integer> avoid = new ArrayList<>();
+	for (String san: p.bestMoves) {
+	    int move = board.fromSan(san);
+	    if (move==0) return new Outcome(p, Verdict.ERROR, "bm " + san + " isn't a legal move", 0L, 0L);
+	    best.add(move);
+	}
+	for (String san: p.avoidMoves) {
+	    int move = board.fromSan(san);
+	    if (move==0) return new Outcome(p, Verdict.ERROR, "am " + san + " isn't a legal move", 0L, 0L);
+	    avoid.add(move);
+	}
+	engine.table.clear();
+	engine.ordering.clear();
+	ChessEngine.Result r = engine.search(board, depth, millis, maxNodes);
+	if (r==null || r.move==0) return new Outcome(p, p.isSearchTest()? Verdict.FAIL: Verdict.NONE, "no move", 0L, System.nanoTime()-start);
+	String detail = board.toSan(r.move) + " " + ChessEngine.scoreString(r.score) + " depth " + r.depth;
+	if (!best.isEmpty()) detail += ", bm " + String.join(" ", p.bestMoves);
+	if (!avoid.isEmpty()) detail += ", am " + String.join(" ", p.avoidMoves);
+	Verdict verdict = !p.isSearchTest()? Verdict.NONE
+	    : (best.isEmpty() || best.contains(r.move)) && !avoid.contains(r.move)? Verdict.PASS: Verdict.FAIL;
+	return new Outcome(p, verdict, detail, r.nodes, System.nanoTime()-start);
+    }
+
+    /*
+     *java ChessEpd [file.epd] [-depth d] [-time ms] [-nodes n] [-perft d] [-threads n] [-hash mb] [-quiet]
+     *without a file it runs ChessPerft's positions as a perft suite. exits with 1 if anything failed
+     */
+    public static void main(String[] args) throws Exception {
+	String file = null;
+	int threads = Runtime.getRuntime().availableProcessors();
+	int hash = 16;
+	boolean quiet = false;
+	int depth = 0;
+	long time = 0L;
+	long maxNodes = 0L;
+	int perftDepth = 4;
+	for (int i=0; i<args.length; i++) {
+	    if (args[i].equals("-depth")) depth = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-time")) time = Long.parseLong(args[++i]);
+	    else if (args[i].equals("-nodes")) maxNodes = Long.parseLong(args[++i]);
+	    else if (args[i].equals("-perft")) perftDepth = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-threads")) threads = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-hash")) hash = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-quiet")) quiet = true;
+	    else file = args[i];
+	}
+	if (depth==0 && time==0L && maxNodes==0L) time = 1000L;
+
+	List<Position> positions = new ArrayList<>();
+	if (file!=null) {
+	    positions = load(file);
+	} else {
+	    for (int p=0; p<ChessPerft.POSITIONS.length; p++) {
+		String line = ChessPerft.POSITIONS[p] + " ;id \"perft " + (p+1) + "\"";
+		for (int d=0; d<ChessPerft.COUNTS[p].length; d++) line += " ;D" + (d+1) + " " + ChessPerft.COUNTS[p][d];
+		positions.add(parse(line, p+1));
+	    }
+	}
+	ChessEpd epd = new ChessEpd(threads, hash);
+	epd.depth = depth;
+	epd.millis = time;
+	epd.maxNodes = maxNodes;
+	epd.maxPerftDepth = perftDepth;
+	if (!quiet) epd.listener = o -> pr(o);
+	pr(positions.size() + " positions, " + epd.threads + " threads");
+
+	long start = System.nanoTime();
+	Outcome[] outcomes = epd.run(positions);
+	long elapsed = System.nanoTime()-start;
+
+	int[] verdicts = new int[Verdict.values().length];
+	for (Outcome o: outcomes) verdicts[o.verdict.ordinal()]++;
+	if (quiet)
+	    for (Outcome o: outcomes) if (o.verdict==Verdict.FAIL || o.verdict==Verdict.ERROR) pr(o);
+	long total = epd.nodes.sum();
+	pr(String.format("%d passed, %d failed, %d errors, %d unchecked", verdicts[Verdict.PASS.ordinal()],
+			 verdicts[Verdict.FAIL.ordinal()], verdicts[Verdict.ERROR.ordinal()], verdicts[Verdict.NONE.ordinal()]));
+	pr(String.format("%,d nodes in %.2fs: %.1f positions/s, %.2f Mnps", total, elapsed/1e9,
+			 outcomes.length*1e9/Math.max(1L, elapsed), total*1e3/Math.max(1L, elapsed)));
+	if (verdicts[Verdict.FAIL.ordinal()] + verdicts[Verdict.ERROR.ordinal()] > 0) System.exit(1);
+    }
+
+    static void pr(Object o) {
+	System.out.println(o);
+    }
+}
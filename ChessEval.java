@@ -0,0 +1,191 @@
+import java.util.Random;
+
+/*
+ *tapered evaluation: material plus piece-square tables, with a middlegame and an endgame score blended by how much
+ *material is left. ChessBoard keeps the white-minus-black totals and the phase up to date in addPiece/removePiece,
+ *so evaluating is a few multiplies instead of a scan of the bitboards.
+ *never meant to be initiated, like Chess
+ */
+public class ChessEval {
+    //by piece type, PAWN to KING
+    public static final int[] MG_VALUES = new int[] {82, 365, 337, 477, 1025, 0};
+    public static final int[] EG_VALUES = new int[] {94, 297, 281, 512, 936, 0};
+    //how much each piece counts towards the middlegame, 24 with all of them on the board
+    public static final int[] PHASE = new int[] {0, 1, 1, 2, 4, 0};
+    public static final int MAX_PHASE = 24;
+
+    //piece-square tables as seen from white, laid out like a diagram: a8 first, h1 last
+    static final int[][] MG_TABLES = new int[][] {
+	{ //pawn
+	    0,  0,  0,  0,  0,  0,  0,  0,
+	    50, 50, 50, 50, 50, 50, 50, 50,
+	    10, 10, 20, 30, 30, 20, 10, 10,
+	    5,  5, 10, 25, 25, 10,  5,  5,
+	    0,  0,  0, 20, 20,  0,  0,  0,
+	    5, -5,-10,  0,  0,-10, -5,  5,
+	    5, 10, 10,-20,-20, 10, 10,  5,
+	    0,  0,  0,  0,  0,  0,  0,  0
+	},
+	{ //bishop
+	    -20,-10,-10,-10,-10,-10,-10,-20,
+	    -10,  0,  0,  0,  0,  0,  0,-10,
+	    -10,  0,  5, 10, 10,  5,  0,-10,
+	    -10,  5,  5, 10, 10,  5,  5,-10,
+	    -10,  0, 10, 10, 10, 10,  0,-10,
+	    -10, 10, 10, 10, 10, 10, 10,-10,
+	    -10,  5,  0,  0,  0,  0,  5,-10,
+	    -20,-10,-10,-10,-10,-10,-10,-20
+	},
+	{ //knight
+	    -50,-40,-30,-30,-30,-30,-40,-50,
+	    -40,-20,  0,  0,  0,  0,-20,-40,
+	    -30,  0, 10, 15, 15, 10,  0,-30,
+	    -30,  5, 15, 20, 20, 15,  5,-30,
+	    -30,  0, 15, 20, 20, 15,  0,-30,
+	    -30,  5, 10, 15, 15, 10,  5,-30,
+	    -40,-20,  0,  5,  5,  0,-20,-40,
+	    -50,-40,-30,-30,-30,-30,-40,-50
+	},
+	{ //rook
+	    0,  0,  0,  0,  0,  0,  0,  0,
+	    5, 10, 10, 10, 10, 10, 10,  5,
+	    -5,  0,  0,  0,  0,  0,  0, -5,
+	    -5,  0,  0,  0,  0,  0,  0, -5,
+	    -5,  0,  0,  0,  0,  0,  0, -5,
+	    -5,  0,  0,  0,  0,  0,  0, -5,
+	    -5,  0,  0,  0,  0,  0,  0, -5,
+	    0,  0,  0,  5,  5,  0,  0,  0
+	},
+	{ //queen
+	    -20,-10,-10, -5, -5,-10,-10,-20,
+	    -10,  0,  0,  0,  0,  0,  0,-10,
+	    -10,  0,  5,  5,  5,  5,  0,-10,
+	    -5,  0,  5,  5,  5,  5,  0, -5,
+	    0,  0,  5,  5,  5,  5,  0, -5,
+	    -10,  5,  5,  5,  5,  5,  0,-10,
+	    -10,  0,  5,  0,  0,  0,  0,-10,
+	    -20,-10,-10, -5, -5,-10,-10,-20
+	},
+	{ //king, tucked away behind its pawns
+	    -30,-40,-40,-50,-50,-40,-40,-30,
+	    -30,-40,-40,-50,-50,-40,-40,-30,
+	    -30,-40,-40,-50,-50,-40,-40,-30,
+	    -30,-40,-40,-50,-50,-40,-40,-30,
+	    -20,-30,-30,-40,-40,-30,-30,-20,
+	    -10,-20,-20,-20,-20,-20,-20,-10,
+	    20, 20,  0,  0,  0,  0, 20, 20,
+	    20, 30, 10,  0,  0, 10, 30, 20
+	}
+    };
+    //in the endgame pawns are worth more the further they've gone and the king belongs in the middle,
+    //the other pieces keep their middlegame tables
+    static final int[] EG_PAWN = new int[] {
+	0,  0,  0,  0,  0,  0,  0,  0,
+	80, 80, 80, 80, 80, 80, 80, 80,
+	50, 50, 50, 50, 50, 50, 50, 50,
+	30, 30, 30, 30, 30, 30, 30, 30,
+	15, 15, 15, 15, 15, 15, 15, 15,
+	5,  5,  5,  5,  5,  5,  5,  5,
+	0,  0,  0,  0,  0,  0,  0,  0,
+	0,  0,  0,  0,  0,  0,  0,  0
+    };
+    static final int[] EG_KING = new int[] {
+	-50,-40,-30,-20,-20,-30,-40,-50,
+	-30,-20,-10,  0,  0,-10,-20,-30,
+	-30,-10, 20, 30, 30, 20,-10,-30,
+	-30,-10, 30, 40, 40, 30,-10,-30,
+	-30,-10, 30, 40, 40, 30,-10,-30,
+	-30,-10, 20, 30, 30, 20,-10,-30,
+	-30,-30,  0,  0,  0,  0,-30,-30,
+	-50,-30,-30,-30,-30,-30,-30,-50
+    };
+
+    //[color (0 white, 1 black)][type][square]: value plus table, negated for black so totals are white minus black
+    static final int[][][] mg = new int[2][6][64];
+    static final int[][][] eg = new int[2][6][64];
+
+    static {
+	for (int type=0; type<6; type++) {
+	    int[] egTable = type==ChessBoard.PAWN? EG_PAWN: type==ChessBoard.KING? EG_KING: MG_TABLES[type];
+	    for (int sq=0; sq<64; sq++) {
+		//square 0 is h1, the diagram starts at a8
+		int white = 8*(7 - sq/8) + (7 - sq%8);
+		int black = 8*(sq/8) + (7 - sq%8);
+		mg[0][type][sq] = MG_VALUES[type] + MG_TABLES[type][white];
+		eg[0][type][sq] = EG_VALUES[type] + egTable[white];
+		mg[1][type][sq] = -(MG_VALUES[type] + MG_TABLES[type][black]);
+		eg[1][type][sq] = -(EG_VALUES[type] + egTable[black]);
+	    }
+	}
+    }
+
+    public static int mg(int color, int type, int pos) {
+	return mg[color==ChessBoard.WHITE? 0: 1][type][pos];
+    }
+    public static int eg(int color, int type, int pos) {
+	return eg[color==ChessBoard.WHITE? 0: 1][type][pos];
+    }
+
+    //blends the two white-minus-black totals by phase and turns the result to the side to move
+    static int taper(int mgScore, int egScore, int phase, int turn) {
+	phase = Math.min(phase, MAX_PHASE);
+	int score = (mgScore*phase + egScore*(MAX_PHASE-phase)) / MAX_PHASE;
+	return turn==ChessBoard.WHITE? score: -score;
+    }
+
+    //from the side to move's point of view, off the board's running totals
+    public static int evaluate(ChessBoard b) {
+	return taper(b.getMgScore(), b.getEgScore(), b.getPhase(), b.turn);
+    }
+
+    //the same, added up from the bitboards
+    public static int evaluateFromScratch(ChessBoard b) {
+	int[] totals = totals(b);
+	return taper(totals[0], totals[1], totals[2], b.turn);
+    }
+
+    //{middlegame, endgame, phase} for b
+    static int[] totals(ChessBoard b) {
+	int[] totals = new int[3];
+	for (int type=0; type<6; type++) {
+	    for (long l=b.bbWhite[type]; l != 0L; l &= l-1) add(totals, 0, type, Long.numberOfTrailingZeros(l));
+	    for (long l=b.bbBlack[type]; l != 0L; l &= l-1) add(totals, 1, type, Long.numberOfTrailingZeros(l));
+	}
+	return totals;
+    }
+    private static void add(int[] totals, int color, int type, int pos) {
+	totals[0] += mg[color][type][pos];
+	totals[1] += eg[color][type][pos];
+	totals[2] += PHASE[type];
+    }
+
+    //plays seeded random games and checks the running totals against a recount after every move and take back
+    public static void main(String[] args) {
+	int games = args.length>0? Integer.parseInt(args[0]): 200;
+	Random random = new Random(20160601L);
+	int[] moves = new int[ChessMoveBuffer.CAPACITY];
+	long positions = 0;
+	int mismatches = 0;
+	for (int g=0; g<games; g++) {
+	    ChessBoard b = new ChessBoard();
+	    b.setup();
+	    for (int ply=0; ply<200; ply++) {
+		int n = b.legalMoves(b.turn, moves, 0);
+		if (n==0) break;
+		for (int i=0; i<n; i++) {
+		    b.makeMove(moves[i]);
+		    positions++;
+		    if (evaluate(b)!=evaluateFromScratch(b) && mismatches++ < 5) pr("mismatch after " + ChessMove.codeToUci(moves[i]) + "\n" + b);
+		    b.unmakeMove();
+		}
+		b.makeMove(moves[random.nextInt(n)]);
+	    }
+	}
+	pr(positions + " positions, " + mismatches + " mismatches");
+	if (mismatches!=0) System.exit(1);
+    }
+
+    static void pr(Object o) {
+	System.out.println(o);
+    }
+}
@@ -1,12 +1,12 @@
-import java.util.List;
-import java.util.LinkedList;
-import java.util.ArrayList;
-
 public class ChessHumanGame {
     ChessBoard b;
     int turn;
     //long checkMask;
-    List<List<ChessMove>> moves;
+    //this turn's legal moves for the side to move only: targets[from] is the mask of squares the piece on from
+    //can go to, and movable the squares with anything in targets
+    final long[] targets;
+    long movable;
+    final ChessMoveBuffer buffer;
     int start;
     int end;
 
@@ -16,32 +16,26 @@ public class ChessHumanGame {
 	b.setup();
 	turn = ChessBoard.WHITE;
 	//checkMask = -1L;
-	moves = new ArrayList<List<ChessMove>>(64);
+	targets = new long[64];
+	buffer = new ChessMoveBuffer();
 	start = -1;
 	end = -1;
     }
 
-    void setMoves() {
-	moves.clear();
-	for (int i=0; i<64; i++) {
-	    if (((1L<<i) & b.getAll())!=0L) {
-		moves.add(b.pieceMoves(i));
-	    } else {
-		moves.add(new LinkedList<>());
-	    }
+    //one pass of the move generator per turn, for the side to move. returns how many legal moves it has,
+    //none meaning the game is over
+    int setMoves() {
+	for (long l=movable; l != 0L; l &= l-1) targets[Long.numberOfTrailingZeros(l)] = 0L;
+	movable = 0L;
+	b.legalMoves(turn, buffer);
+	for (int i=0; i<buffer.size(); i++) {
+	    int start = ChessMove.startOf(buffer.get(i));
+	    targets[start] |= 1L<<ChessMove.endOf(buffer.get(i));
+	    movable |= 1L<<start;
 	}
+	return buffer.size();
     }
 
-    boolean movesAvailable() {
-	for (int i=0; i<64; i++) {
-	    if (moves.get(i).size()!=0)
-		if (((1L<<i) & b.getByColor(turn))!=0L)
-		    return true;
-	}
-	return false;
-    }
-	
-    
     void setStart() {
 	while (start==-1) {
 	    System.out.print("Enter starting square: ");
@@ -54,7 +48,7 @@ public class ChessHumanGame {
 		    throw new IllegalArgumentException("Choose a " + (turn==ChessBoard.WHITE? "white": "black") + " piece");
 
 		//if (b.typeAtPosition(start) != ChessBoard.KING) moves = ChessBoard.applyMask(moves, b.getByColor(turn), checkMask);
-		if (moves.get(start).size()==0)
+		if (((1L<<start) & movable) == 0L)
 
 		    throw new IllegalArgumentException("No moves available for specified piece");
 	    } catch (IllegalArgumentException iae) {
@@ -74,7 +68,7 @@ public class ChessHumanGame {
 	    }
 	    try {
 		end = ChessMove.toIndex(sEnd);
-		if (!moves.get(start).contains(new ChessMove(start, end)))
+		if (((1L<<end) & targets[start]) == 0L)
 		    throw new IllegalArgumentException("Invalid move chosen for given piece");
 
 	    } catch (IllegalArgumentException iae) {
@@ -89,22 +83,20 @@ public class ChessHumanGame {
 	//checkMask = b.inCheckFilter(turn);
 	while (end == -1 || start == -1) {
 	    setStart();
-	    System.out.println(b.toString(ChessBoard.moveMask(moves.get(start))|ChessBoard.captureMask(moves.get(start))));
+	    System.out.println(b.toString(targets[start]));
 	    setEnd();
 	}
 	b.makeMove(new ChessMove(start, end));
     }
 
     void playGame() {
-	setMoves();
-	while (movesAvailable()) {
+	while (setMoves() > 0) {
 	    makeTurn();
 	    turn = -1*turn;
 	    end = start = -1;
-	    setMoves();
 	    // checkMask = -1L;
 	}
-	if (b.attacking(b.getKingIndex(turn), -turn)==0L) {
+	if (!b.inCheck(turn)) {
 	    System.out.println("Stalemate!");
 	} else {
 	    System.out.println("Checkmate! Win for " + (turn==ChessBoard.BLACK? "white": "black"));
@@ -0,0 +1,271 @@
+import java.util.Random;
+
+//precomputed sliding attacks: a rook or bishop attack set becomes one multiply, shift and load
+//never meant to be initiated, like Chess
+public class ChessMagic {
+    //which lookup Chess.bishopMask/rookMask use, picked with -Dchess.sliders=magic|pext|hyperbola
+    public static final int MAGIC = 0;
+    public static final int PEXT = 1;
+    public static final int HYPERBOLA = 2;
+    public static final int MODE = mode(System.getProperty("chess.sliders", "magic"));
+
+    //occupancy bits that can block a slider on each square (board edges never matter)
+    public static final long[] rookRelevant = new long[64];
+    public static final long[] bishopRelevant = new long[64];
+
+    //magics found by findMagic with the fixed seed below and stored, so startup only has to fill the tables
+    //if one ever stops fitting (say the square numbering changes), it is searched for again
+    public static final long[] rookMagics = new long[] {
+	0x1480034000A08018L, 0x5040001000402000L, 0x99000A6000D10041L, 0x528008001001C480L,
+	0x0100100801000402L, 0x8100040002010008L, 0x0380008019000200L, 0x0100020020408100L,
+	0x4021800080400020L, 0x0000802000400082L, 0x8000802000100088L, 0x8000801000080080L,
+	0x1202002012000408L, 0x0010800400800200L, 0x8001000401000200L, 0x000200020040A904L,
+	0x0080004020004008L, 0x0040044020100040L, 0x00304A0010220081L, 0x0441210010030108L,
+	0x1028010005001008L, 0x0040808004000200L, 0x0444040090024801L, 0x094402002C004287L,
+	0x000385248000400AL, 0x8000820200402102L, 0x4017011100402006L, 0x2000201200420008L,
+	0x2000080080800400L, 0x0822000200081004L, 0x0000480400020190L, 0x0200008200010044L,
+	0x1024400022800081L, 0x0660003000C00040L, 0x0008820022001040L, 0x2412100009002100L,
+	0x0428040801001101L, 0x4001000803000400L, 0xCD800E080C002910L, 0x0009000081000042L,
+	0x088000402000C000L, 0x0044600550054002L, 0x0200100020008080L, 0x8010008008008010L,
+	0x00820004208A0010L, 0x0201000804010002L, 0x04020008210200C4L, 0x4010004100820004L,
+	0x2402008038410200L, 0x0082804001200680L, 0x00801A0020408200L, 0x0004201001040900L,
+	0x0540800800040080L, 0x0C02008408108200L, 0x0808D00831020400L, 0x0428800049001880L,
+	0x8001004084221202L, 0x0404400421001085L, 0x0C0408A042021082L, 0x2008050008100021L,
+	0x0101000208001005L, 0x000100080400822DL, 0x0033211098100204L, 0x8004042104004882L
+    };
+    public static final long[] bishopMagics = new long[] {
+	0x0008088108020010L, 0x08683840B4004001L, 0x4204080200440010L, 0x0418208128100000L,
+	0x0004042080020000L, 0x0081010840001010L, 0x00D4010808044000L, 0x2002020101211083L,
+	0x0006202101110102L, 0x8802901240830600L, 0xC0C1108482024120L, 0x14E0044400800008L,
+	0x0C00020210808340L, 0x0000011008050800L, 0x0002204148084080L, 0x0010030500908440L,
+	0x4041020408081120L, 0x011C0608100C4044L, 0x0808808108010100L, 0x0002801806084014L,
+	0x0004200202011080L, 0x0820406201100100L, 0x0102100108010402L, 0x0050200100A80401L,
+	0x4461200008022400L, 0x0002090002080804L, 0x0000410008020408L, 0x8820840118012020L,
+	0x0041011003004000L, 0x1084180921010100L, 0x1040840422010400L, 0x6121004109004801L,
+	0x0002104040708A01L, 0x04C4022820021070L, 0x0302004110901100L, 0x8018200800C50104L,
+	0x0000410042040040L, 0x0028100020090091L, 0x0084010400406401L, 0x0088104050030900L,
+	0x400A480240004804L, 0x0002080404004208L, 0x2006840041104800L, 0x0000004200900800L,
+	0x2104902201600200L, 0x0001101002800044L, 0x0190100080B04102L, 0x5008086100200040L,
+	0x0102209004104220L, 0x8201040104024020L, 0x42C0808420A80001L, 0x2202B00820880810L,
+	0x0020000410440010L, 0x0040082108008891L, 0x3490100908548400L, 0x2A02040812004020L,
+	0x0008402090101008L, 0x0020089218010400L, 0x000100D042180400L, 0x0000080402104402L,
+	0x00200A0004704418L, 0x068202A084100A20L, 0x1142121010110040L, 0x4082223408120040L
+    };
+    static final int[] rookShifts = new int[64];
+    static final int[] bishopShifts = new int[64];
+    static final int[] rookOffsets = new int[64];
+    static final int[] bishopOffsets = new int[64];
+    static final long[] rookTable;
+    static final long[] bishopTable;
+
+    //how long the static initializer took to find the magics and fill the tables
+    public static final long initNanos;
+
+    private static final long EDGES_RANKS = 0xFF000000000000FFL;
+    private static final long EDGES_FILES = 0x8181818181818181L;
+
+    static {
+	long start = System.nanoTime();
+	int rookSize = 0;
+	int bishopSize = 0;
+	for (int i=0; i<64; i++) {
+	    rookRelevant[i] = (Chess.rowMasks[i] & ~EDGES_FILES) | (Chess.columnMasks[i] & ~EDGES_RANKS);
+	    bishopRelevant[i] = (Chess.forwardMasks[i] | Chess.backwardMasks[i]) & ~(EDGES_RANKS | EDGES_FILES);
+	    rookOffsets[i] = rookSize;
+	    bishopOffsets[i] = bishopSize;
+	    rookShifts[i] = 64 - Long.bitCount(rookRelevant[i]);
+	    bishopShifts[i] = 64 - Long.bitCount(bishopRelevant[i]);
+	    rookSize += 1<<Long.bitCount(rookRelevant[i]);
+	    bishopSize += 1<<Long.bitCount(bishopRelevant[i]);
+	}
+	rookTable = new long[rookSize];
+	bishopTable = new long[bishopSize];
+	//fixed seed, so every run finds the same magics
+	Random random = new Random(728L);
+	for (int i=0; i<64; i++) {
+	    if (!fill(i, true, rookMagics[i])) rookMagics[i] = findMagic(i, true, random);
+	    if (!fill(i, false, bishopMagics[i])) bishopMagics[i] = findMagic(i, false, random);
+	}
+	initNanos = System.nanoTime() - start;
+    }
+
+    private static int mode(String name) {
+	if (name.equalsIgnoreCase("pext")) return PEXT;
+	if (name.equalsIgnoreCase("hyperbola")) return HYPERBOLA;
+	return MAGIC;
+    }
+
+    private static long reference(long occ, int i, boolean rook) {
+	return rook? Chess.hyperbolaRookMask(occ, i): Chess.hyperbolaBishopMask(occ, i);
+    }
+
+    //fills the table for square i with a known magic, false if it collides
+    private static boolean fill(int i, boolean rook, long magic) {
+	long relevant = rook? rookRelevant[i]: bishopRelevant[i];
+	long[] table = rook? rookTable: bishopTable;
+	int offset = rook? rookOffsets[i]: bishopOffsets[i];
+	int shift = rook? rookShifts[i]: bishopShifts[i];
+	boolean[] used = new boolean[1<<(64-shift)];
+	long subset = 0L;
+	do {
+	    int index = (int) ((subset * magic) >>> shift);
+	    long attacks = reference(subset, i, rook);
+	    if (used[index] && table[offset + index] != attacks) return false;
+	    used[index] = true;
+	    table[offset + index] = attacks;
+	    subset = (subset - relevant) & relevant;
+	} while (subset != 0L);
+	return true;
+    }
+
+    //trial and error over sparse random numbers until every blocker subset lands on a slot
+    //holding either nothing yet or the very same attack set
+    private static long findMagic(int i, boolean rook, Random random) {
+	long relevant = rook? rookRelevant[i]: bishopRelevant[i];
+	long[] table = rook? rookTable: bishopTable;
+	int offset = rook? rookOffsets[i]: bishopOffsets[i];
+	int shift = rook? rookShifts[i]: bishopShifts[i];
+	int size = 1<<(64-shift);
+
+	long[] occupancies = new long[size];
+	long[] attacks = new long[size];
+	long subset = 0L;
+	int k = 0;
+	do { //carry-rippler walk over every subset of the relevant bits
+	    occupancies[k] = subset;
+	    attacks[k++] = reference(subset, i, rook);
+	    subset = (subset - relevant) & relevant;
+	} while (subset != 0L);
+
+	int[] used = new int[size];
+	for (int attempt=1; ; attempt++) {
+	    long magic = random.nextLong() & random.nextLong() & random.nextLong();
+	    if (Long.bitCount((relevant * magic) & 0xFF00000000000000L) < 6) continue;
+	    boolean ok = true;
+	    for (int j=0; j<size && ok; j++) {
+		int index = (int) ((occupancies[j] * magic) >>> shift);
+		if (used[index] != attempt) {
+		    used[index] = attempt;
+		    table[offset + index] = attacks[j];
+		} else if (table[offset + index] != attacks[j]) {
+		    ok = false;
+		}
+	    }
+	    if (ok) return magic;
+	}
+    }
+
+    public static long rookAttacks(long occ, int i) {
+	return rookTable[rookOffsets[i] + (int) (((occ & rookRelevant[i]) * rookMagics[i]) >>> rookShifts[i])];
+    }
+    public static long bishopAttacks(long occ, int i) {
+	return bishopTable[bishopOffsets[i] + (int) (((occ & bishopRelevant[i]) * bishopMagics[i]) >>> bishopShifts[i])];
+    }
+
+    /*
+     *pext style variant: the relevant occupancy bits are gathered into a dense index, no magic needed.
+     *java 8 has no pext, so the gather is a software loop and this is mostly here to cross-check
+     *the magics and to swap in Long.compress on a newer jdk. tables are only built if asked for
+     */
+    private static class Pext {
+	static final long[] rookTable = new long[ChessMagic.rookTable.length];
+	static final long[] bishopTable = new long[ChessMagic.bishopTable.length];
+	static {
+	    for (int i=0; i<64; i++) {
+		fill(i, rookRelevant[i], rookTable, rookOffsets[i], true);
+		fill(i, bishopRelevant[i], bishopTable, bishopOffsets[i], false);
+	    }
+	}
+	private static void fill(int i, long relevant, long[] table, int offset, boolean rook) {
+	    long subset = 0L;
+	    do {
+		table[offset + (int) pext(subset, relevant)] = reference(subset, i, rook);
+		subset = (subset - relevant) & relevant;
+	    } while (subset != 0L);
+	}
+    }
+
+    public static long pext(long x, long mask) {
+	long out = 0L;
+	for (long bit=1L; mask != 0L; bit <<= 1) {
+	    if ((x & mask & -mask) != 0L) out |= bit;
+	    mask &= mask-1;
+	}
+	return out;
+    }
+
+    public static long rookPextAttacks(long occ, int i) {
+	return Pext.rookTable[rookOffsets[i] + (int) pext(occ, rookRelevant[i])];
+    }
+    public static long bishopPextAttacks(long occ, int i) {
+	return Pext.bishopTable[bishopOffsets[i] + (int) pext(occ, bishopRelevant[i])];
+    }
+
+    //what Chess.rookMask/bishopMask go through, MODE is a constant so the switch folds away
+    public static long rookMask(long occ, int i) {
+	switch (MODE) {
+	case PEXT: return rookPextAttacks(occ, i);
+	case HYPERBOLA: return Chess.hyperbolaRookMask(occ, i);
+	default: return rookAttacks(occ, i);
+	}
+    }
+    public static long bishopMask(long occ, int i) {
+	switch (MODE) {
+	case PEXT: return bishopPextAttacks(occ, i);
+	case HYPERBOLA: return Chess.hyperbolaBishopMask(occ, i);
+	default: return bishopAttacks(occ, i);
+	}
+    }
+
+    //bytes held by the magic tables (the pext tables, if built, cost the same again)
+    public static long footprint() {
+	return 8L * (rookTable.length + bishopTable.length)
+	    + 2 * 8L * 64 //relevant masks
+	    + 2 * 8L * 64 //magics
+	    + 4 * 4L * 64; //shifts and offsets
+    }
+
+    //cross-checks magic and pext lookups against the hyperbola code on random occupancies, returns mismatches
+    public static int verify(int samples, long seed) {
+	Random random = new Random(seed);
+	int mismatches = 0;
+	for (int i=0; i<64; i++) {
+	    for (int k=0; k<samples; k++) {
+		long occ = random.nextLong() & random.nextLong();
+		long rook = Chess.hyperbolaRookMask(occ, i);
+		long bishop = Chess.hyperbolaBishopMask(occ, i);
+		if (rookAttacks(occ, i)!=rook || rookPextAttacks(occ, i)!=rook) mismatches++;
+		if (bishopAttacks(occ, i)!=bishop || bishopPextAttacks(occ, i)!=bishop) mismatches++;
+	    }
+	}
+	return mismatches;
+    }
+
+    public static void main(String[] args) {
+	pr("sliders: " + (MODE==MAGIC? "magic": MODE==PEXT? "pext": "hyperbola"));
+	pr("magic init " + initNanos/1000 + "us, " + (rookTable.length + bishopTable.length) + " entries, "
+	   + footprint()/1024 + "KB");
+	pr("mismatches against hyperbola: " + verify(2000, 1L));
+
+	long[] occs = new long[4096];
+	Random random = new Random(2L);
+	for (int k=0; k<occs.length; k++) occs[k] = random.nextLong() & random.nextLong();
+	for (int round=0; round<3; round++) {
+	    long sink = 0L;
+	    long t0 = System.nanoTime();
+	    for (long occ: occs) for (int i=0; i<64; i++) sink ^= Chess.hyperbolaRookMask(occ, i) ^ Chess.hyperbolaBishopMask(occ, i);
+	    long t1 = System.nanoTime();
+	    for (long occ: occs) for (int i=0; i<64; i++) sink ^= rookAttacks(occ, i) ^ bishopAttacks(occ, i);
+	    long t2 = System.nanoTime();
+	    for (long occ: occs) for (int i=0; i<64; i++) sink ^= rookPextAttacks(occ, i) ^ bishopPextAttacks(occ, i);
+	    long t3 = System.nanoTime();
+	    double calls = 2.0 * occs.length * 64;
+	    pr(String.format("hyperbola %.1fns, magic %.1fns, pext %.1fns per lookup (%d)",
+			     (t1-t0)/calls, (t2-t1)/calls, (t3-t2)/calls, sink & 1));
+	}
+    }
+
+    static void pr(Object o) {
+	System.out.println(o);
+    }
+}
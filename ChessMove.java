@@ -2,7 +2,58 @@ public class ChessMove {
     public final int start;
     public final int end;
     public final boolean capture;
+    //type a pawn promotes to, EMPTY if not a promotion (makeMove defaults to a queen)
+    public final int promotion;
     public static final ChessMove MATE = new ChessMove(-1, -1);
+
+    /*
+     *packed move codes, used by the allocation free generator in ChessBoard
+     *bits 0-5 start, 6-11 end, 12-14 moving type, 15-17 captured type, 18-20 promotion type,
+     *then one bit each for en passant, castling and double pawn pushes
+     *types are stored as (type & 7), so EMPTY comes out as 7
+     */
+    public static final int PASSANT = 1<<21;
+    public static final int CASTLE = 1<<22;
+    public static final int DOUBLE_PUSH = 1<<23;
+    private static final int NONE = 7;
+
+    public static int encode(int start, int end, int type, int captured, int promotion, int flags) {
+	return start | (end<<6) | ((type&7)<<12) | ((captured&7)<<15) | ((promotion&7)<<18) | flags;
+    }
+    public static int startOf(int code) {
+	return code & 63;
+    }
+    public static int endOf(int code) {
+	return (code>>>6) & 63;
+    }
+    private static int typeField(int code, int shift) {
+	int t = (code>>>shift) & 7;
+	return t==NONE? ChessBoard.EMPTY: t;
+    }
+    public static int typeOf(int code) {
+	return typeField(code, 12);
+    }
+    public static int capturedOf(int code) {
+	return typeField(code, 15);
+    }
+    public static int promotionOf(int code) {
+	return typeField(code, 18);
+    }
+    public static boolean isCapture(int code) {
+	return ((code>>>15) & 7) != NONE;
+    }
+    public static boolean isPromotion(int code) {
+	return ((code>>>18) & 7) != NONE;
+    }
+    public static boolean isPassant(int code) {
+	return (code & PASSANT) != 0;
+    }
+    public static boolean isCastle(int code) {
+	return (code & CASTLE) != 0;
+    }
+    public static boolean isDoublePush(int code) {
+	return (code & DOUBLE_PUSH) != 0;
+    }
     
     public ChessMove(int start, int end) {
 	this(start, end, false);
@@ -11,14 +62,20 @@ public class ChessMove {
 	this(start, end, false);
     }
     public ChessMove(int start, int end, boolean capture) {
+	this(start, end, capture, ChessBoard.EMPTY);
+    }
+    public ChessMove(int start, int end, boolean capture, int promotion) {
 	this.start = start;
 	this.end = end;
 	this.capture = capture;
+	this.promotion = promotion;
     }
     public ChessMove(String start, String end, boolean capture) {
-	this.start = toIndex(start);
-	this.end = toIndex(end);
-	this.capture = capture;
+	this(toIndex(start), toIndex(end), capture);
+    }
+    //decodes a packed move code
+    public ChessMove(int code) {
+	this(startOf(code), endOf(code), isCapture(code), promotionOf(code));
     }
 
     /*
@@ -56,7 +113,18 @@ public class ChessMove {
     }
 
     public String toString() {
-	return toPositionString(start) + " -> " + toPositionString(end) + (capture? " ; capture": "");
+	return toPositionString(start) + " -> " + toPositionString(end) + (capture? " ; capture": "")
+	    + (promotion!=ChessBoard.EMPTY? " ; " + ChessBoard.names[promotion]: "");
+    }
+    //coordinate notation as used by uci and perft divide output, e.g. e7e8q
+    public String toUci() {
+	return toPositionString(start) + toPositionString(end) + (promotion!=ChessBoard.EMPTY? "pbnrq".substring(promotion, promotion+1): "");
+    }
+    public static String codeToUci(int code) {
+	return new ChessMove(code).toUci();
+    }
+    public static String codeToString(int code) {
+	return new ChessMove(code).toString();
     }
     public static void main(String[] args) {
 	for (String s: args) System.out.println(toPositionString(toIndex(s)));
@@ -0,0 +1,57 @@
+import java.util.List;
+import java.util.ArrayList;
+
+//reusable, caller owned list of packed move codes (see ChessMove.encode)
+//meant to be allocated once and handed to ChessBoard.legalMoves over and over
+public class ChessMoveBuffer {
+    //no position has more than 218 legal moves
+    public static final int CAPACITY = 256;
+
+    public final int[] moves;
+    public int size;
+
+    public ChessMoveBuffer() {
+	this(CAPACITY);
+    }
+    public ChessMoveBuffer(int capacity) {
+	moves = new int[capacity];
+	size = 0;
+    }
+
+    public void clear() {
+	size = 0;
+    }
+    public void add(int code) {
+	moves[size++] = code;
+    }
+    public int get(int i) {
+	return moves[i];
+    }
+    public int size() {
+	return size;
+    }
+    public boolean isEmpty() {
+	return size==0;
+    }
+    public boolean contains(int start, int end) {
+	for (int i=0; i<size; i++)
+	    if (ChessMove.startOf(moves[i])==start && ChessMove.endOf(moves[i])==end) return true;
+	return false;
+    }
+
+    //decoded views, for the console and gui, not for hot loops
+    public ChessMove toMove(int i) {
+	return new ChessMove(moves[i]);
+    }
+    public List<ChessMove> toMoves() {
+	List<ChessMove> out = new ArrayList<>(size);
+	for (int i=0; i<size; i++) out.add(toMove(i));
+	return out;
+    }
+
+    public String toString() {
+	String out = "";
+	for (int i=0; i<size; i++) out += ChessMove.codeToString(moves[i]) + "\n";
+	return out;
+    }
+}
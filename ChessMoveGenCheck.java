@@ -0,0 +1,56 @@
+import java.util.List;
+import java.util.Random;
+
+//regression suite for the packed generator: plays seeded random games and checks, square by square,
+//that ChessBoard.pieceMoves gives exactly the moves the old trial-and-filter generator (trialMoves) does
+public class ChessMoveGenCheck {
+
+    //returns the number of mismatching squares, printing the first few
+    public static int check(int games, int plies, long seed) {
+	Random random = new Random(seed);
+	int[] moves = new int[ChessMoveBuffer.CAPACITY];
+	int mismatches = 0;
+	long positions = 0;
+	long trialTime = 0;
+	long legalTime = 0;
+	for (int g=0; g<games; g++) {
+	    ChessBoard b = new ChessBoard();
+	    b.setup();
+	    for (int ply=0; ply<plies; ply++) {
+		positions++;
+		for (int i=0; i<64; i++) {
+		    if (b.colorAtPosition(i)==0) continue;
+		    long t0 = System.nanoTime();
+		    List<ChessMove> trial = b.trialMoves(i);
+		    long t1 = System.nanoTime();
+		    List<ChessMove> legal = b.pieceMoves(i);
+		    long t2 = System.nanoTime();
+		    trialTime += t1-t0;
+		    legalTime += t2-t1;
+		    if (ChessBoard.toMask(trial)!=ChessBoard.toMask(legal) || trial.size()!=legal.size()) {
+			if (mismatches++ < 5)
+			    pr("mismatch on " + ChessMove.toPositionString(i) + "\n" + b + "\ntrial: " + trial + "\nlegal: " + legal);
+		    }
+		}
+		int n = b.legalMoves(b.turn, moves, 0);
+		//the early exit check has to agree with the full generator, mate and stalemate included
+		if (b.hasAnyLegalMove(b.turn) != (n>0) && mismatches++ < 5) pr("hasAnyLegalMove wrong with " + n + " moves\n" + b);
+		if (n==0) break;
+		b.makeMove(moves[random.nextInt(n)]);
+	    }
+	}
+	pr(positions + " positions, " + mismatches + " mismatching squares");
+	pr("trialMoves " + trialTime/1000000 + "ms, pieceMoves " + legalTime/1000000 + "ms");
+	return mismatches;
+    }
+
+    public static void main(String[] args) {
+	int games = args.length>0? Integer.parseInt(args[0]): 200;
+	int mismatches = check(games, 200, 20160601L);
+	if (mismatches!=0) System.exit(1);
+    }
+
+    static void pr(Object o) {
+	System.out.println(o);
+    }
+}
@@ -1,57 +1,188 @@
-import java.util.List;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
+/*
+ *the record of a game: each move as a packed code (see ChessMove.encode), with the zobrist key and fifty-move clock
+ *of every position along the way. the undo records are the board's own (makeMove pushes them), so going back is
+ *unmakeMove, not a stored board. positions are also counted in a small open addressing table by key, which makes
+ *threefold repetition a single lookup. the starting position is kept packed (see ChessPositionCodec), so the game
+ *can be replayed from the top, to write it out for one
+ */
 public class ChessMoveHistory {
-    final LinkedList<HistoryMove> moveHistory;
-    final LinkedList<ChessBoard> boardHistory;
+    final ChessBoard board;
+    //how many moves the board could already take back when this history started
+    final int base;
+    //half moves played in the game before this history started, for the move number
+    int firstPly;
+    //the position before moves[0], null if it has too many pieces to pack
+    final byte[] start;
 
-    public void addGeneration(ChessBoard child, ChessMove move, int type, boolean checking) {
-	ChessBoard parent = boardHistory.getLast();
-	HistoryMove current = new HistoryMove(move, type, checking, parent, child);
-	boardHistory.add(child);
-	moveHistory.add(current);
+    //moves[i] was played in the position keys[i]; keys[size] and clocks[size] are the current position's
+    int[] moves = new int[16];
+    long[] keys = new long[17];
+    int[] clocks = new int[17];
+    int size;
+
+    //times each position has occurred, by key
+    long[] seen = new long[32];
+    int[] counts = new int[32];
+    int distinct;
+
+    public ChessMoveHistory(ChessBoard board) {
+	this.board = board;
+	base = board.undoDepth();
+	firstPly = board.turn==ChessBoard.BLACK? 1: 0;
+	if (Long.bitCount(board.getAll()) <= 32) {
+	    start = new byte[ChessPositionCodec.BYTES];
+	    ChessPositionCodec.encode(board, ByteBuffer.wrap(start).order(ByteOrder.LITTLE_ENDIAN), 0, 0, 1);
+	} else {
+	    start = null;
+	}
+	keys[0] = board.getKey();
+	count(keys[0], 1);
     }
 
-    public ChessMoveHistory(ChessBoard initial) {
-	moveHistory = new LinkedList<>();
-	boardHistory = new LinkedList<ChessBoard>();
-	boardHistory.add(initial);
+    //records a move just played on the board with makeMove
+    public void add(int code) {
+	if (size==moves.length) {
+	    moves = Arrays.copyOf(moves, 2*size);
+	    keys = Arrays.copyOf(keys, 2*size+1);
+	    clocks = Arrays.copyOf(clocks, 2*size+1);
+	}
+	moves[size] = code;
+	//pawn moves and captures can't be undone over the board, they restart the fifty-move count
+	boolean irreversible = ChessMove.typeOf(code)==ChessBoard.PAWN || ChessMove.isCapture(code);
+	clocks[size+1] = irreversible? 0: clocks[size]+1;
+	keys[++size] = board.getKey();
+	count(keys[size], 1);
+    }
+
+    //plays a packed move on the board and records it
+    public void play(int code) {
+	board.makeMove(code);
+	add(code);
+    }
+
+    //takes the game back to how it stood after ply moves
+    public void rewind(int ply) {
+	if (board.undoDepth() - base != size)
+	    throw new IllegalStateException("board has moves that aren't in its history");
+	while (size > Math.max(0, ply)) {
+	    int code = moves[size-1];
+	    count(keys[size], -1);
+	    size--;
+	    int color = board.colorAtPosition(ChessMove.endOf(code));
+	    board.unmakeMove();
+	    if (ChessMove.isCapture(code)) board.uncapture(color);
+	}
     }
-}
 
-class HistoryMove {
-    final int start;
-    final int end;
-    final int type;
-    final boolean capture;
-    final boolean checking;
-    ChessBoard parent;
-    ChessBoard child;
-    public static final HistoryMove WHITEMATE = new HistoryMove();
-    public static final HistoryMove BLACKMATE = new HistoryMove();
-    public static final HistoryMove STALEMATE = new HistoryMove();
+    public void undo() {
+	rewind(size-1);
+    }
+
+    public int size() {
+	return size;
+    }
+    public int move(int i) {
+	return moves[i];
+    }
+    //key of the position before moves[i], or the current one for i==size()
+    public long key(int i) {
+	return keys[i];
+    }
+
+    //a new board set up as the game started, clocks included
+    public ChessBoard startBoard() {
+	if (start==null) throw new IllegalStateException("starting position wasn't recorded");
+	ChessBoard b = ChessPositionCodec.decode(start);
+	b.history.setHalfmoveClock(clocks[0]);
+	b.history.setFullmoveNumber(firstPly/2 + 1);
+	return b;
+    }
+
+    //half moves since the last pawn move or capture
+    public int halfmoveClock() {
+	return clocks[size];
+    }
+    //for positions set up partway through a game, like from a fen
+    public void setHalfmoveClock(int clock) {
+	clocks[size] = clock;
+    }
+
+    //the fen move number: starts at 1 and goes up after each black move
+    public int fullmoveNumber() {
+	return (firstPly + size)/2 + 1;
+    }
+    public void setFullmoveNumber(int move) {
+	firstPly = 2*(Math.max(1, move) - 1) + (board.turn==ChessBoard.BLACK? 1: 0) - size;
+    }
+
+    //times the current position has occurred, itself included
+    public int repetitions() {
+	return occurrences(keys[size]);
+    }
+    public int occurrences(long key) {
+	int i = slot(key);
+	return seen[i]==key? counts[i]: 0;
+    }
+
+    public boolean isThreefold() {
+	return repetitions() >= 3;
+    }
+    public boolean isFiftyMoves() {
+	return halfmoveClock() >= 100;
+    }
+    public boolean isDraw() {
+	return isThreefold() || isFiftyMoves();
+    }
 
-    public HistoryMove(ChessMove move, int type, boolean checking, ChessBoard parent, ChessBoard child) {
-	start = move.start;
-	end = move.end;
-	this.type = type;
-	capture = move.capture;
-	this.checking = checking;
+    //whether this history still describes its board, which it doesn't once moves are made on the board directly
+    public boolean isCurrent() {
+	return keys[size]==board.getKey() && board.undoDepth() - base == size;
     }
 
-    public HistoryMove(ChessMove move, int type) {
-	this(move, type, false, new ChessBoard(), new ChessBoard());
+    //linear probing from the key's home slot to the key or the first empty slot. entries are never removed,
+    //a position taken back just has its count go down to 0
+    private int slot(long key) {
+	int mask = seen.length-1;
+	int i = (int) (key ^ (key>>>32)) & mask;
+	while (counts[i]!=0 || seen[i]!=0L) {
+	    if (seen[i]==key) return i;
+	    i = (i+1) & mask;
+	}
+	return i;
     }
 
-    public HistoryMove() {
-	this(ChessMove.MATE, -1);
+    private void count(long key, int delta) {
+	int i = slot(key);
+	if (counts[i]==0 && seen[i]==0L) {
+	    seen[i] = key;
+	    distinct++;
+	}
+	counts[i] += delta;
+	if (2*distinct > seen.length) grow();
     }
 
-    public void setParent(ChessBoard parent) {
-	this.parent = parent;
+    private void grow() {
+	long[] oldSeen = seen;
+	int[] oldCounts = counts;
+	seen = new long[2*oldSeen.length];
+	counts = new int[2*oldCounts.length];
+	distinct = 0;
+	for (int i=0; i<oldSeen.length; i++) {
+	    if (oldCounts[i]==0) continue;
+	    int j = slot(oldSeen[i]);
+	    seen[j] = oldSeen[i];
+	    counts[j] = oldCounts[i];
+	    distinct++;
+	}
     }
 
-    public void setChild(ChessBoard child) {
-	this.child = child;
+    public String toString() {
+	String s = "";
+	for (int i=0; i<size; i++) s += (i%2==0? (i/2+1) + ". ": "") + ChessMove.codeToUci(moves[i]) + " ";
+	return s.trim();
     }
 }
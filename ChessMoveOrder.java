@@ -0,0 +1,168 @@
+import java.util.Arrays;
+
+/*
+ *move ordering for ChessEngine: scores moves as they come out of the generator so the ones likeliest to cause a
+ *cutoff are searched first. in order: the hash move, captures by most valuable victim/least valuable attacker,
+ *the two killers for the ply, the counter to the opponent's last move, then the other quiet moves by history.
+ *each search thread has its own, and the tables are plain arrays kept from one search to the next
+ */
+public class ChessMoveOrder {
+    static final int HASH = 1<<30;
+    static final int CAPTURE = 1<<28;
+    static final int KILLER = 1<<27;
+    static final int COUNTER = 1<<26;
+    //history scores stay within plus or minus this, below everything else
+    static final int HISTORY_MAX = 1<<20;
+
+    //each heuristic can be turned off, to measure what it is worth
+    public boolean useMvvLva = true;
+    public boolean useKillers = true;
+    public boolean useHistory = true;
+    public boolean useCounters = true;
+
+    //quiet moves that caused a cutoff at each ply, most recent first
+    final int[][] killers = new int[ChessEngine.MAX_PLY+1][2];
+    //butterfly history: [side to move][from][to]
+    final int[][][] history = new int[2][64][64];
+    //the quiet move that last refuted each opponent move, by its [from][to]
+    final int[][] counters = new int[64][64];
+
+    //killers belong to the last search's tree, history is only faded
+    public void newSearch() {
+	for (int[] k: killers) k[0] = k[1] = 0;
+	for (int[][] side: history)
+	    for (int[] from: side)
+		for (int to=0; to<64; to++) from[to] /= 2;
+    }
+
+    public void clear() {
+	newSearch();
+	for (int[][] side: history)
+	    for (int[] from: side) Arrays.fill(from, 0);
+	for (int[] from: counters) Arrays.fill(from, 0);
+    }
+
+    static boolean isQuiet(int move) {
+	return !ChessMove.isCapture(move) && !ChessMove.isPromotion(move);
+    }
+
+    //what a capture or promotion wins, less a fraction of the attacker so cheaper attackers go first
+    public static int mvvLva(int move) {
+	int captured = ChessMove.capturedOf(move);
+	int promotion = ChessMove.promotionOf(move);
+	return (captured==ChessBoard.EMPTY? 0: ChessEngine.VALUES[captured])
+	    + (promotion==ChessBoard.EMPTY? 0: ChessEngine.VALUES[promotion])
+	    - ChessEngine.VALUES[ChessMove.typeOf(move)]/16;
+    }
+
+    //fills scores[0, n) for list[0, n). previous is the opponent's move that led here, 0 at the root
+    public void score(int[] list, int[] scores, int n, int hashMove, int ply, int previous, int color) {
+	int killer0 = killers[ply][0];
+	int killer1 = killers[ply][1];
+	int counter = previous==0? 0: counters[ChessMove.startOf(previous)][ChessMove.endOf(previous)];
+	int[][] h = history[color==ChessBoard.WHITE? 0: 1];
+	for (int i=0; i<n; i++) {
+	    int move = list[i];
+	    int score;
+	    if (move==hashMove) {
+		score = HASH;
+	    } else if (!isQuiet(move)) {
+		score = CAPTURE + (useMvvLva? mvvLva(move): 0);
+	    } else if (useKillers && move==killer0) {
+		score = KILLER + 1;
+	    } else if (useKillers && move==killer1) {
+		score = KILLER;
+	    } else if (useCounters && move==counter) {
+		score = COUNTER;
+	    } else {
+		score = useHistory? h[ChessMove.startOf(move)][ChessMove.endOf(move)]: 0;
+	    }
+	    scores[i] = score;
+	}
+    }
+
+    //fills scores[0, n) for the quiet moves list[0, n): the counter to previous, then history
+    public void scoreQuiets(int[] list, int[] scores, int n, int previous, int color) {
+	int counter = (previous==0 || !useCounters)? 0: counters[ChessMove.startOf(previous)][ChessMove.endOf(previous)];
+	int[][] h = history[color==ChessBoard.WHITE? 0: 1];
+	for (int i=0; i<n; i++) {
+	    int move = list[i];
+	    if (move==counter) scores[i] = COUNTER;
+	    else scores[i] = useHistory? h[ChessMove.startOf(move)][ChessMove.endOf(move)]: 0;
+	}
+    }
+
+    //selection sort one step at a time: swaps the best of list[i, n) into i and returns it.
+    //a cutoff on the first few moves never pays for sorting the rest
+    public static int pickNext(int[] list, int[] scores, int i, int n) {
+	int best = i;
+	for (int j=i+1; j<n; j++) if (scores[j] > scores[best]) best = j;
+	int move = list[best];
+	int score = scores[best];
+	list[best] = list[i];
+	scores[best] = scores[i];
+	list[i] = move;
+	scores[i] = score;
+	return move;
+    }
+
+    //sorts all of list[0, n) by score at once
+    public static void sort(int[] list, int[] scores, int n) {
+	for (int i=0; i<n; i++) pickNext(list, scores, i, n);
+    }
+
+    /*
+     *a quiet move caused a beta cutoff: it becomes the first killer and the counter to previous, and its history
+     *goes up by depth squared while the quiet moves tried before it (quiets[0, tried)) go down by as much.
+     *the update shrinks as a score nears HISTORY_MAX, so the table never overflows or needs rescaling
+     */
+    public void cutoff(int move, int ply, int depth, int previous, int color, int[] quiets, int tried) {
+	if (!isQuiet(move)) return;
+	if (killers[ply][0]!=move) {
+	    killers[ply][1] = killers[ply][0];
+	    killers[ply][0] = move;
+	}
+	if (previous!=0) counters[ChessMove.startOf(previous)][ChessMove.endOf(previous)] = move;
+	int[][] h = history[color==ChessBoard.WHITE? 0: 1];
+	int bonus = Math.min(depth*depth, 400);
+	update(h, move, bonus);
+	for (int i=0; i<tried; i++) update(h, quiets[i], -bonus);
+    }
+
+    private static void update(int[][] h, int move, int bonus) {
+	int[] from = h[ChessMove.startOf(move)];
+	int to = ChessMove.endOf(move);
+	from[to] += 32*bonus - from[to]*Math.abs(bonus)/(HISTORY_MAX/32);
+    }
+
+    /*
+     *java ChessMoveOrder [depth] [hash mb]: nodes to reach depth on the perft positions with the heuristics added
+     *one at a time, starting from just the hash move and captures first
+     */
+    public static void main(String[] args) {
+	int depth = args.length>0? Integer.parseInt(args[0]): 7;
+	int hash = args.length>1? Integer.parseInt(args[1]): 64;
+	String[] labels = new String[] {"hash move, captures first", "+ mvv-lva", "+ killers", "+ history", "+ countermoves"};
+	long base = 0L;
+	for (int config=0; config<labels.length; config++) {
+	    ChessEngine engine = new ChessEngine(hash);
+	    engine.ordering.useMvvLva = config>=1;
+	    engine.ordering.useKillers = config>=2;
+	    engine.ordering.useHistory = config>=3;
+	    engine.ordering.useCounters = config>=4;
+	    long nodes = 0L;
+	    long nanos = 0L;
+	    for (String fen: ChessPerft.POSITIONS) {
+		ChessEngine.Result r = engine.search(ChessBoard.fromFen(fen), depth);
+		nodes += r.nodes;
+		nanos += r.nanos;
+	    }
+	    if (base==0L) base = nodes;
+	    pr(String.format("%-26s %,14d nodes %6.1f%% %8dms", labels[config], nodes, 100.0*nodes/base, nanos/1000000));
+	}
+    }
+
+    static void pr(Object o) {
+	System.out.println(o);
+    }
+}
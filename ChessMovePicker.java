@@ -0,0 +1,138 @@
+/*
+ *hands ChessEngine the moves of one node a stage at a time, generating each stage only when the last one runs out:
+ *the hash move (checked on its own, nothing generated), then captures and promotions by mvv-lva, then the killers
+ *(checked the same way), then the rest of the quiet moves by history. a cutoff early on never pays for quiet moves.
+ *one picker per ply, reused from node to node
+ */
+public class ChessMovePicker {
+    static final int HASH = 0;
+    static final int NOISY_GEN = 1;
+    static final int NOISY = 2;
+    static final int KILLER_1 = 3;
+    static final int KILLER_2 = 4;
+    static final int QUIET_GEN = 5;
+    static final int QUIET = 6;
+    static final int DONE = 7;
+    //the captures-only list of the quiescence search, and the root's moves in a fixed order
+    static final int LIST = 8;
+    static final int ROOT = 9;
+
+    final int[] moves = new int[ChessMoveBuffer.CAPACITY];
+    final int[] scores = new int[ChessMoveBuffer.CAPACITY];
+    ChessBoard board;
+    ChessMoveOrder ordering;
+    int stage;
+    int index;
+    int n;
+    int hashMove;
+    int killer1;
+    int killer2;
+    int ply;
+    int previous;
+
+    //nodes picked for, and how many of them went as far as generating quiet moves
+    long nodes;
+    long quietNodes;
+
+    public void init(ChessBoard b, ChessMoveOrder ordering, int hashMove, int ply, int previous) {
+	board = b;
+	this.ordering = ordering;
+	this.ply = ply;
+	this.previous = previous;
+	this.hashMove = hashMove;
+	killer1 = ordering.useKillers? ordering.killers[ply][0]: 0;
+	killer2 = ordering.useKillers? ordering.killers[ply][1]: 0;
+	stage = HASH;
+	nodes++;
+    }
+
+    //every legal move at once, sorted, with the ones after the first rotated left by rotation (lazy smp helpers)
+    public void initRoot(ChessBoard b, ChessMoveOrder ordering, int hashMove, int rotation) {
+	board = b;
+	this.ordering = ordering;
+	n = b.legalMoves(b.turn, moves, 0);
+	ordering.score(moves, scores, n, hashMove, 0, 0, b.turn);
+	ChessMoveOrder.sort(moves, scores, n);
+	if (rotation>0 && n>2) ChessEngine.rotate(moves, 1, n, rotation % (n-1));
+	index = 0;
+	stage = ROOT;
+    }
+
+    //captures and queen promotions only, biggest victim first
+    public void initQuiescence(ChessBoard b) {
+	board = b;
+	int color = b.turn;
+	int all = b.legalMoves(color, -1L, b.getByColor(-color) | ChessBoard.promotionRank(color), moves, 0);
+	n = 0;
+	for (int i=0; i<all; i++) {
+	    int move = moves[i];
+	    if (ChessMove.isCapture(move) || ChessMove.promotionOf(move)==ChessBoard.QUEEN) {
+		scores[n] = ChessMoveOrder.mvvLva(move);
+		moves[n++] = move;
+	    }
+	}
+	index = 0;
+	stage = LIST;
+    }
+
+    //the next move to search, or 0 when there are none left. each stage falls through to the next once it is used up
+    @SuppressWarnings("fallthrough")
+    public int next() {
+	switch (stage) {
+	case HASH:
+	    stage = NOISY_GEN;
+	    if (hashMove!=0 && board.isLegalMove(hashMove)) return hashMove;
+	    hashMove = 0;
+	case NOISY_GEN: {
+	    //captures and anything landing on the last rank, which takes in the promotions
+	    int color = board.turn;
+	    int all = board.legalMoves(color, -1L, board.getByColor(-color) | ChessBoard.promotionRank(color), moves, 0);
+	    n = 0;
+	    for (int i=0; i<all; i++) {
+		int move = moves[i];
+		if (ChessMoveOrder.isQuiet(move) || move==hashMove) continue;
+		scores[n] = ordering.useMvvLva? ChessMoveOrder.mvvLva(move): 0;
+		moves[n++] = move;
+	    }
+	    index = 0;
+	    stage = NOISY;
+	}
+	case NOISY:
+	    if (index<n) return ChessMoveOrder.pickNext(moves, scores, index++, n);
+	    stage = KILLER_1;
+	case KILLER_1:
+	    stage = KILLER_2;
+	    if (killer1!=0 && killer1!=hashMove && board.isLegalMove(killer1)) return killer1;
+	case KILLER_2:
+	    stage = QUIET_GEN;
+	    if (killer2!=0 && killer2!=hashMove && board.isLegalMove(killer2)) return killer2;
+	case QUIET_GEN: {
+	    quietNodes++;
+	    int color = board.turn;
+	    int all = board.legalMoves(color, -1L, ~board.getByColor(-color), moves, 0);
+	    n = 0;
+	    for (int i=0; i<all; i++) {
+		int move = moves[i];
+		//the to mask lets en passant through, its square being empty, but the noisy stage has had it
+		if (!ChessMoveOrder.isQuiet(move) || move==hashMove || move==killer1 || move==killer2) continue;
+		moves[n++] = move;
+	    }
+	    ordering.scoreQuiets(moves, scores, n, previous, color);
+	    index = 0;
+	    stage = QUIET;
+	}
+	case QUIET:
+	    if (index<n) return ChessMoveOrder.pickNext(moves, scores, index++, n);
+	    stage = DONE;
+	case DONE:
+	    return 0;
+	case LIST:
+	    if (index<n) return ChessMoveOrder.pickNext(moves, scores, index++, n);
+	    return 0;
+	case ROOT:
+	    return index<n? moves[index++]: 0;
+	default:
+	    return 0;
+	}
+    }
+}
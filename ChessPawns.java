@@ -0,0 +1,159 @@
+/*
+ *pawn structure: passed, doubled, isolated and backward pawns, worked out a whole side at a time with shifts and fills
+ *over the pawn bitboards. the pawns change far less often than anything else, so the result is cached by the board's
+ *pawn-only zobrist key and most evaluations are one table lookup. the king shield depends on the king too, so it isn't
+ *cached, but it is only a couple of ands and bit counts.
+ *one per search thread, not shared
+ */
+public class ChessPawns {
+    //square 0 is h1, so the h file is bit 0 of each rank and the a file bit 7
+    static final long H_FILE = 0x0101010101010101L;
+    static final long A_FILE = 0x8080808080808080L;
+
+    static final int DOUBLED_MG = -10, DOUBLED_EG = -20;
+    static final int ISOLATED_MG = -10, ISOLATED_EG = -15;
+    static final int BACKWARD_MG = -8, BACKWARD_EG = -10;
+    //by rank from the pawn's own side, 0 the back rank
+    static final int[] PASSED_MG = new int[] {0, 5, 10, 15, 25, 45, 70, 0};
+    static final int[] PASSED_EG = new int[] {0, 10, 15, 25, 45, 75, 120, 0};
+    //middlegame only, per own pawn on the rank in front of the king and the one after
+    static final int SHIELD_NEAR = 12;
+    static final int SHIELD_FAR = 6;
+
+    //white minus black structure scores by pawn key. a position without pawns has key 0 and scores 0,
+    //which is just what an empty slot holds, so there is no need to mark slots as used
+    final long[] keys;
+    final int[] mgScores;
+    final int[] egScores;
+    final int mask;
+    public long probes;
+    public long hits;
+
+    public ChessPawns(int entries) {
+	entries = Integer.highestOneBit(Math.max(1, entries));
+	keys = new long[entries];
+	mgScores = new int[entries];
+	egScores = new int[entries];
+	mask = entries-1;
+    }
+
+    public ChessPawns() {
+	this(1<<14);
+    }
+
+    //pawn structure and king shields, tapered and from the side to move's point of view
+    public int evaluate(ChessBoard b) {
+	long key = b.getPawnKey();
+	int i = (int) key & mask;
+	probes++;
+	if (keys[i]==key) {
+	    hits++;
+	} else {
+	    int[] s = structure(b.bbWhite[ChessBoard.PAWN], b.bbBlack[ChessBoard.PAWN]);
+	    keys[i] = key;
+	    mgScores[i] = s[0];
+	    egScores[i] = s[1];
+	}
+	int mg = mgScores[i] + shield(b, ChessBoard.WHITE) - shield(b, ChessBoard.BLACK);
+	int eg = egScores[i];
+	return ChessEval.taper(mg, eg, b.getPhase(), b.turn);
+    }
+
+    public double hitRate() {
+	return probes==0? 0.0: (double) hits/probes;
+    }
+
+    public String stats() {
+	return String.format("pawn hash %,d entries, %,d probes, %.1f%% hits", keys.length, probes, 100.0*hitRate());
+    }
+
+    static long north(long l) {return l<<8;}
+    static long south(long l) {return l>>>8;}
+    static long east(long l) {return (l>>>1) & ~A_FILE;}
+    static long west(long l) {return (l<<1) & ~H_FILE;}
+    static long northFill(long l) {
+	l |= l<<8;
+	l |= l<<16;
+	return l | l<<32;
+    }
+    static long southFill(long l) {
+	l |= l>>>8;
+	l |= l>>>16;
+	return l | l>>>32;
+    }
+    static long fileFill(long l) {
+	return northFill(l) | southFill(l);
+    }
+
+    //{middlegame, endgame}, white minus black
+    static int[] structure(long white, long black) {
+	int[] s = new int[2];
+	side(s, white, black);
+	//mirrored, black's pawns can be scored with white's geometry
+	int[] t = new int[2];
+	side(t, Long.reverseBytes(black), Long.reverseBytes(white));
+	s[0] -= t[0];
+	s[1] -= t[1];
+	return s;
+    }
+
+    //adds the terms for pawns moving north, against enemy pawns moving south
+    private static void side(int[] s, long own, long enemy) {
+	long ownFiles = fileFill(own);
+	long ownAttacks = east(north(own)) | west(north(own));
+	long enemyAttacks = east(south(enemy)) | west(south(enemy));
+	//squares in front of each enemy pawn, and next to those: a pawn on none of them is passed
+	long enemyFront = southFill(south(enemy));
+	long blocked = enemyFront | east(enemyFront) | west(enemyFront);
+
+	long doubled = own & northFill(north(own));
+	long isolated = own & ~(east(ownFiles) | west(ownFiles));
+	//the stop square is watched by an enemy pawn and no own pawn behind or beside could ever cover it
+	long backward = south(north(own) & enemyAttacks & ~northFill(ownAttacks)) & ~isolated;
+	//only the front one of doubled pawns can be passed
+	long passed = own & ~blocked & ~southFill(south(own));
+
+	s[0] += DOUBLED_MG*Long.bitCount(doubled) + ISOLATED_MG*Long.bitCount(isolated) + BACKWARD_MG*Long.bitCount(backward);
+	s[1] += DOUBLED_EG*Long.bitCount(doubled) + ISOLATED_EG*Long.bitCount(isolated) + BACKWARD_EG*Long.bitCount(backward);
+	for (; passed != 0L; passed &= passed-1) {
+	    int rank = Long.numberOfTrailingZeros(passed)/8;
+	    s[0] += PASSED_MG[rank];
+	    s[1] += PASSED_EG[rank];
+	}
+    }
+
+    //own pawns on the two ranks in front of the king, its file and the ones beside it
+    static int shield(ChessBoard b, int color) {
+	int king = b.getKingIndex(color);
+	if (king>63) return 0;
+	long pawns = b.bbPieces(color, ChessBoard.PAWN);
+	long files = 1L<<king;
+	files |= east(files) | west(files);
+	long near = color==ChessBoard.WHITE? north(files): south(files);
+	long far = color==ChessBoard.WHITE? north(near): south(near);
+	return SHIELD_NEAR*Long.bitCount(pawns & near) + SHIELD_FAR*Long.bitCount(pawns & far);
+    }
+
+    //java ChessPawns [fen]: the structure terms for a position, and a check that the cached score is the computed one
+    public static void main(String[] args) {
+	ChessBoard b;
+	if (args.length>0) {
+	    b = ChessBoard.fromFen(args[0]);
+	} else {
+	    b = new ChessBoard();
+	    b.setup();
+	}
+	pr(b);
+	ChessPawns pawns = new ChessPawns();
+	int first = pawns.evaluate(b);
+	int second = pawns.evaluate(b);
+	int[] s = structure(b.bbWhite[ChessBoard.PAWN], b.bbBlack[ChessBoard.PAWN]);
+	pr("structure mg " + s[0] + " eg " + s[1] + ", shields " + shield(b, ChessBoard.WHITE) + "/" + shield(b, ChessBoard.BLACK));
+	pr("evaluate " + first + (first==second? " (cached the same)": " but cached " + second));
+	pr(pawns.stats());
+    }
+
+    static void pr(Object o) {
+	System.out.println(o);
+    }
+}
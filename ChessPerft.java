@@ -0,0 +1,224 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+//perft: counts the leaves of the legal move tree to a fixed depth
+//against the known counts it is the correctness oracle for move generation, and nodes/sec is its throughput
+public class ChessPerft {
+    //standard test positions and their known node counts from depth 1 up (chessprogramming wiki)
+    static final String[] POSITIONS = new String[] {
+	"rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+	"r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+	"8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+	"r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1",
+	"rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8",
+	"r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10"
+    };
+    static final long[][] COUNTS = new long[][] {
+	{20L, 400L, 8902L, 197281L, 4865609L, 119060324L},
+	{48L, 2039L, 97862L, 4085603L, 193690690L},
+	{14L, 191L, 2812L, 43238L, 674624L, 11030083L},
+	{6L, 264L, 9467L, 422333L, 15833292L},
+	{44L, 1486L, 62379L, 2103487L, 89941194L},
+	{46L, 2079L, 89890L, 3894594L, 164075551L}
+    };
+
+    final ForkJoinPool pool;
+    final Cache cache;
+
+    //cacheMB of 0 runs without the transposition cache, threads of 0 without a pool, for perft() alone
+    public ChessPerft(int threads, int cacheMB) {
+	pool = threads>0? new ForkJoinPool(threads): null;
+	cache = cacheMB>0? new Cache(cacheMB): null;
+    }
+
+    //leaf count at depth below b, single threaded. b is left as it was
+    public long perft(ChessBoard b, int depth) {
+	return count(b, depth, new int[depth+1][ChessMoveBuffer.CAPACITY]);
+    }
+
+    //one move buffer per ply, so the recursion never allocates
+    long count(ChessBoard b, int depth, int[][] buffers) {
+	if (depth==0) return 1L;
+	int[] moves = buffers[depth];
+	int n = b.legalMoves(b.turn, moves, 0);
+	//bulk counting, the last ply is never played
+	if (depth==1) return n;
+	long key = 0L;
+	if (cache!=null) {
+	    key = b.getKey();
+	    long nodes = cache.probe(key, depth);
+	    if (nodes>=0L) return nodes;
+	}
+	long nodes = 0L;
+	for (int i=0; i<n; i++) {
+	    b.makeMove(moves[i]);
+	    nodes += count(b, depth-1, buffers);
+	    b.unmakeMove();
+	}
+	if (cache!=null) cache.store(key, depth, nodes);
+	return nodes;
+    }
+
+    //leaf counts under each of the n root moves, split across the pool with a board copy per root move.
+    //without a pool they are counted one after another on b itself
+    public long[] divide(ChessBoard b, int depth, int[] rootMoves, int n) {
+	long[] nodes = new long[n];
+	if (pool==null) {
+	    int[][] buffers = new int[depth][ChessMoveBuffer.CAPACITY];
+	    for (int i=0; i<n; i++) {
+		b.makeMove(rootMoves[i]);
+		nodes[i] = count(b, depth-1, buffers);
+		b.unmakeMove();
+	    }
+	    return nodes;
+	}
+	RootTask[] tasks = new RootTask[n];
+	for (int i=0; i<n; i++) {
+	    tasks[i] = new RootTask(b, rootMoves[i], depth-1);
+	    pool.execute(tasks[i]);
+	}
+	for (int i=0; i<n; i++) nodes[i] = tasks[i].join();
+	return nodes;
+    }
+
+    public long parallelPerft(ChessBoard b, int depth) {
+	if (depth<=1 || pool==null) return perft(b, depth);
+	int[] moves = new int[ChessMoveBuffer.CAPACITY];
+	int n = b.legalMoves(b.turn, moves, 0);
+	long total = 0L;
+	for (long nodes: divide(b, depth, moves, n)) total += nodes;
+	return total;
+    }
+
+    class RootTask extends RecursiveTask<Long> {
+	private static final long serialVersionUID = 1L;
+	final ChessBoard board;
+	final int depth;
+
+	RootTask(ChessBoard b, int move, int depth) {
+	    board = new ChessBoard(b);
+	    board.makeMove(move);
+	    this.depth = depth;
+	}
+
+	protected Long compute() {
+	    return count(board, depth, new int[depth+1][ChessMoveBuffer.CAPACITY]);
+	}
+    }
+
+    /*
+     *shared perft transposition cache, lockless: a slot is two longs, (key ^ count, count), with the depth
+     *mixed into the key. if two threads tear a slot the xor no longer matches and it reads as a miss
+     */
+    static class Cache {
+	final long[] slots;
+	final int mask;
+	final LongAdder hits = new LongAdder();
+	final LongAdder probes = new LongAdder();
+
+	Cache(int mb) {
+	    int entries = Integer.highestOneBit(Math.max(1, (int) Math.min(1L<<30, (mb*1024L*1024L)/16)));
+	    slots = new long[2*entries];
+	    mask = entries-1;
+	}
+
+	static long mix(long key, int depth) {
+	    return key ^ (depth * 0x9E3779B97F4A7C15L);
+	}
+
+	long probe(long key, int depth) {
+	    probes.increment();
+	    long k = mix(key, depth);
+	    int i = ((int) k & mask)<<1;
+	    long check = slots[i];
+	    long nodes = slots[i+1];
+	    if ((check ^ nodes) != k) return -1L;
+	    hits.increment();
+	    return nodes;
+	}
+
+	void store(long key, int depth, long nodes) {
+	    long k = mix(key, depth);
+	    int i = ((int) k & mask)<<1;
+	    slots[i] = k ^ nodes;
+	    slots[i+1] = nodes;
+	}
+    }
+
+    static void report(String label, long nodes, long nanos) {
+	pr(String.format("%-12s %,14d nodes %8.3fs %8.2f Mnps", label, nodes, nanos/1e9, nodes*1e3/Math.max(1L, nanos)));
+    }
+
+    //java ChessPerft [-depth d] [-fen "..."] [-divide] [-threads n] [-hash mb]
+    //without a fen it runs the standard suite up to depth (default: counts under 5M nodes)
+    public static void main(String[] args) {
+	int depth = -1;
+	String fen = null;
+	boolean divide = false;
+	int threads = Runtime.getRuntime().availableProcessors();
+	int hash = 0;
+	for (int i=0; i<args.length; i++) {
+	    if (args[i].equals("-depth")) depth = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-fen")) fen = args[++i];
+	    else if (args[i].equals("-divide")) divide = true;
+	    else if (args[i].equals("-threads")) threads = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-hash")) hash = Integer.parseInt(args[++i]);
+	}
+	ChessPerft perft = new ChessPerft(threads, hash);
+	pr(threads + " threads" + (hash>0? ", " + hash + "MB cache": ", no cache"));
+
+	if (fen!=null) {
+	    ChessBoard b = ChessBoard.fromFen(fen);
+	    if (depth<0) depth = 4;
+	    long start = System.nanoTime();
+	    long total = 0L;
+	    if (divide) {
+		int[] moves = new int[ChessMoveBuffer.CAPACITY];
+		int n = b.legalMoves(b.turn, moves, 0);
+		long[] nodes = perft.divide(b, depth, moves, n);
+		String[] lines = new String[n];
+		for (int i=0; i<n; i++) {
+		    lines[i] = ChessMove.codeToUci(moves[i]) + ": " + nodes[i];
+		    total += nodes[i];
+		}
+		Arrays.sort(lines);
+		for (String line: lines) pr(line);
+		pr("");
+	    } else {
+		total = perft.parallelPerft(b, depth);
+	    }
+	    report("depth " + depth, total, System.nanoTime()-start);
+	} else {
+	    int failures = 0;
+	    long allNodes = 0L;
+	    long allNanos = 0L;
+	    for (int p=0; p<POSITIONS.length; p++) {
+		pr(POSITIONS[p]);
+		ChessBoard b = ChessBoard.fromFen(POSITIONS[p]);
+		for (int d=1; d<=COUNTS[p].length; d++) {
+		    long expected = COUNTS[p][d-1];
+		    if (depth<0? expected>5000000L: d>depth) break;
+		    long start = System.nanoTime();
+		    long nodes = perft.parallelPerft(b, d);
+		    long nanos = System.nanoTime()-start;
+		    allNodes += nodes;
+		    allNanos += nanos;
+		    boolean ok = nodes==expected;
+		    if (!ok) failures++;
+		    report("  depth " + d + (ok? "": " FAIL(" + expected + ")"), nodes, nanos);
+		}
+	    }
+	    report("total", allNodes, allNanos);
+	    if (perft.cache!=null)
+		pr("cache hits " + perft.cache.hits.sum() + "/" + perft.cache.probes.sum());
+	    pr(failures==0? "all counts match": failures + " counts wrong");
+	    if (failures!=0) System.exit(1);
+	}
+    }
+
+    static void pr(Object o) {
+	System.out.println(o);
+    }
+}
@@ -0,0 +1,431 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/*
+ *portable game notation. Reader pulls games one at a time off a channel through a fixed 64KB buffer, so an archive
+ *of millions of games is never in memory, only the game being read. replayAll hands the games to worker threads,
+ *each replaying on its own board, while the reading thread goes on to the next (a bounded queue between them
+ *keeps the reader from running ahead). write turns a ChessMoveHistory back into pgn.
+ *never meant to be initiated, like Chess
+ */
+public class ChessPgn {
+    public static final String[] ROSTER = new String[] {"Event", "Site", "Date", "Round", "White", "Black", "Result"};
+
+    //one game as read: tags in file order, the moves as written (san, annotations stripped) and the result token
+    public static class Game {
+	public final long number;
+	public final Map<String, String> tags = new LinkedHashMap<>();
+	public final List<String> moves = new ArrayList<>();
+	public String result;
+
+	Game(long number) {
+	    this.number = number;
+	}
+
+	public String tag(String name) {
+	    return tags.get(name);
+	}
+
+	public String toString() {
+	    return "game " + number + " (" + tags.getOrDefault("White", "?") + " - " + tags.getOrDefault("Black", "?") + ")";
+	}
+    }
+
+    /*
+     *splits a pgn stream into games. tag pairs, move numbers, {comments}, ; and % comment lines, (variations),
+     *$nags and !? marks are all taken care of. tag values are utf-8, everything else is read a byte at a time
+     */
+    public static class Reader implements Closeable {
+	//longer tokens are cut off here, no san comes anywhere near it
+	static final int MAX_TOKEN = 256;
+
+	final ReadableByteChannel channel;
+	final ByteBuffer buffer = ByteBuffer.allocate(1<<16);
+	final StringBuilder token = new StringBuilder();
+	final ByteArrayOutputStream value = new ByteArrayOutputStream();
+	int ahead = -2;
+	long games;
+	long bytes;
+
+	public Reader(ReadableByteChannel channel) {
+	    this.channel = channel;
+	    buffer.flip();
+	}
+
+	public Reader(Path path) throws IOException {
+	    this(FileChannel.open(path, StandardOpenOption.READ));
+	}
+
+	private int read() throws IOException {
+	    if (ahead!=-2) {
+		int c = ahead;
+		ahead = -2;
+		return c;
+	    }
+	    if (!buffer.hasRemaining()) {
+		buffer.clear();
+		int n;
+		do {
+		    n = channel.read(buffer);
+		} while (n==0);
+		buffer.flip();
+		if (n<0) return -1;
+		bytes += n;
+	    }
+	    return buffer.get() & 0xFF;
+	}
+
+	private void unread(int c) {
+	    ahead = c;
+	}
+
+	private void skipTo(int end) throws IOException {
+	    for (int c = read(); c!=end && c!=-1; c = read());
+	}
+
+	//the next game, or null at the end of the stream
+	public Game next() throws IOException {
+	    Game game = null;
+	    while (true) {
+		int c = read();
+		if (c==-1) {
+		    //comments after the last result don't make a game of their own
+		    if (game!=null && game.moves.isEmpty() && game.tags.isEmpty()) {
+			games--;
+			return null;
+		    }
+		    return game;
+		}
+		if (Character.isWhitespace(c)) continue;
+		//a game starts at its first tag or movetext token, not at a comment
+		if (game==null && "{;%()$)]}".indexOf(c)<0) game = new Game(++games);
+		switch (c) {
+		case '[':
+		    //a tag after moves means the last game ended without a result
+		    if (!game.moves.isEmpty()) {
+			unread(c);
+			return game;
+		    }
+		    readTag(game);
+		    break;
+		case '{':
+		    skipTo('}');
+		    break;
+		case ';':
+		case '%':
+		    skipTo('\n');
+		    break;
+		case '(':
+		    skipVariation();
+		    break;
+		case '$':
+		    readToken(c);
+		    break;
+		case ')':
+		case ']':
+		case '}':
+		    break;
+		default:
+		    String t = readToken(c);
+		    if (t.equals("1-0") || t.equals("0-1") || t.equals("1/2-1/2") || t.equals("*")) {
+			game.result = t;
+			return game;
+		    }
+		    //move numbers, on their own or stuck to the move (12.e4, 12...Nf6)
+		    int i = 0;
+		    while (i<t.length() && Character.isDigit(t.charAt(i))) i++;
+		    if (i<t.length() && t.charAt(i)=='.') {
+			while (i<t.length() && t.charAt(i)=='.') i++;
+		    } else {
+			i = 0;
+		    }
+		    int end = t.length();
+		    while (end>i && (t.charAt(end-1)=='!' || t.charAt(end-1)=='?')) end--;
+		    if (end>i) game.moves.add(t.substring(i, end));
+		}
+	    }
+	}
+
+	private String readToken(int c) throws IOException {
+	    token.setLength(0);
+	    for (; c!=-1 && !Character.isWhitespace(c) && "{}()[];".indexOf(c)<0; c = read())
+		if (token.length()<MAX_TOKEN) token.append((char) c);
+	    if (c!=-1) unread(c);
+	    return token.toString();
+	}
+
+	//[Name "value"], with \" and \\ escapes in the value
+	private void readTag(Game game) throws IOException {
+	    int c = read();
+	    while (c==' ' || c=='\t') c = read();
+	    String name = readToken(c);
+	    c = read();
+	    while (c!='"' && c!=']' && c!=-1) c = read();
+	    value.reset();
+	    if (c=='"') {
+		for (c = read(); c!='"' && c!=-1; c = read()) {
+		    if (c=='\\') c = read();
+		    if (c!=-1 && value.size()<MAX_TOKEN*4) value.write(c);
+		}
+		skipTo(']');
+	    }
+	    game.tags.put(name, new String(value.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	//a (variation), which can have variations and comments of its own
+	private void skipVariation() throws IOException {
+	    int depth = 1;
+	    while (depth>0) {
+		int c = read();
+		if (c==-1) return;
+		if (c=='(') depth++;
+		else if (c==')') depth--;
+		else if (c=='{') skipTo('}');
+		else if (c==';') skipTo('\n');
+	    }
+	}
+
+	public long bytesRead() {
+	    return bytes;
+	}
+
+	public void close() throws IOException {
+	    channel.close();
+	}
+    }
+
+    /*
+     *plays game on b from its FEN tag (or the start) and returns null, or what went wrong. the board's history has
+     *the game afterwards. a game ending in mate has to have the mating side's result
+     */
+    public static String replay(Game game, ChessBoard b) {
+	String fen = game.tag("FEN");
+	try {
+	    b.setFen(fen!=null? fen: ChessBoard.START_FEN);
+	} catch (IllegalArgumentException iae) {
+	    return iae.getMessage();
+	}
+	for (int i=0; i<game.moves.size(); i++) {
+	    int move = b.fromSan(game.moves.get(i));
+	    if (move==0) {
+		int ply = 2*(b.history.fullmoveNumber()-1) + (b.turn==ChessBoard.BLACK? 1: 0);
+		return "illegal move " + (ply/2 + 1) + (ply%2==0? ". ": "... ") + game.moves.get(i);
+	    }
+	    b.history.play(move);
+	}
+	if (game.result!=null && b.inCheck(b.turn) && !b.hasAnyLegalMove(b.turn)) {
+	    String expected = b.turn==ChessBoard.WHITE? "0-1": "1-0";
+	    if (!game.result.equals(expected)) return "ends in mate but the result is " + game.result;
+	}
+	return null;
+    }
+
+    //totals of a replayAll
+    public static class Stats {
+	public final LongAdder games = new LongAdder();
+	public final LongAdder plies = new LongAdder();
+	public final LongAdder errors = new LongAdder();
+	public long bytes;
+	public long nanos;
+
+	public String toString() {
+	    double seconds = Math.max(1L, nanos)/1e9;
+	    return String.format("%,d games, %,d plies, %,d errors in %.2fs: %,.0f games/s, %,.0f plies/s, %.1f MB/s",
+				 games.sum(), plies.sum(), errors.sum(), seconds, games.sum()/seconds, plies.sum()/seconds, bytes/1e6/seconds);
+	}
+    }
+
+    static final Game END = new Game(-1L);
+
+    /*
+     *replays every game from reader on threads workers, a board each. errors go to onError (from the worker threads)
+     *as "game n (white - black): what went wrong"
+     */
+    public static Stats replayAll(Reader reader, int threads, Consumer<String> onError) throws IOException, InterruptedException {
+	Stats stats = new Stats();
+	BlockingQueue<Game> queue = new ArrayBlockingQueue<>(64*threads);
+	Thread[] workers = new Thread[threads];
+	for (int t=0; t<threads; t++) {
+	    workers[t] = new Thread(() -> {
+		    ChessBoard b = new ChessBoard();
+		    try {
+			for (Game game = queue.take(); game!=END; game = queue.take()) {
+			    String error;
+			    //one game the board code can't cope with is an error like any other, not the end of the worker
+			    try {
+				error = replay(game, b);
+			    } catch (RuntimeException e) {
+				error = "replay threw " + e;
+			    }
+			    stats.games.increment();
+			    stats.plies.add(b.history.size());
+			    if (error!=null) {
+				stats.errors.increment();
+				if (onError!=null) onError.accept(game + ": " + error);
+			    }
+			}
+		    } catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		    }
+	    }, "pgn worker " + t);
+	    workers[t].start();
+	}
+	long start = System.nanoTime();
+	try {
+	    for (Game game = reader.next(); game!=null; game = reader.next())
+		if (!hand(queue, game, workers)) throw new IllegalStateException("every pgn worker has died");
+	} finally {
+	    for (int t=0; t<threads && hand(queue, END, workers); t++);
+	    for (Thread w: workers) w.join();
+	}
+	stats.nanos = System.nanoTime()-start;
+	stats.bytes = reader.bytesRead();
+	return stats;
+    }
+
+    //queue.put, unless no worker is left alive to take it off the queue: false then
+    static boolean hand(BlockingQueue<Game> queue, Game game, Thread[] workers) throws InterruptedException {
+	while (!queue.offer(game, 100, TimeUnit.MILLISECONDS)) {
+	    boolean alive = false;
+	    for (Thread w: workers) alive |= w.isAlive();
+	    if (!alive) return false;
+	}
+	return true;
+    }
+
+    //the result the final position calls for: mate, stalemate, or a draw by the game record, otherwise *
+    public static String result(ChessBoard b) {
+	if (!b.hasAnyLegalMove(b.turn)) return !b.inCheck(b.turn)? "1/2-1/2": b.turn==ChessBoard.WHITE? "0-1": "1-0";
+	return b.history.isDraw()? "1/2-1/2": "*";
+    }
+
+    /*
+     *the game in h as pgn: the seven tag roster first ("?" for what tags doesn't give, and the result worked out from
+     *the position if not given), then the other tags, a FEN if the game didn't start from the usual position, and the
+     *moves in san wrapped at 80 columns
+     */
+    public static void write(ChessMoveHistory h, Map<String, String> tags, Appendable out) throws IOException {
+	ChessBoard b = h.startBoard();
+	String start = b.toFen();
+	Map<String, String> all = new LinkedHashMap<>();
+	for (String name: ROSTER) all.put(name, tags.getOrDefault(name, name.equals("Date")? "????.??.??": "?"));
+	if (!tags.containsKey("Result")) all.put("Result", result(h.board));
+	for (Map.Entry<String, String> tag: tags.entrySet()) all.putIfAbsent(tag.getKey(), tag.getValue());
+	if (!start.equals(ChessBoard.START_FEN)) {
+	    all.put("SetUp", "1");
+	    all.put("FEN", start);
+	}
+	for (Map.Entry<String, String> tag: all.entrySet())
+	    out.append('[').append(tag.getKey()).append(" \"").append(tag.getValue().replace("\\", "\\\\").replace("\"", "\\\"")).append("\"]\n");
+	out.append('\n');
+
+	StringBuilder line = new StringBuilder();
+	for (int i=0; i<h.size(); i++) {
+	    int move = h.move(i);
+	    String text = b.toSan(move);
+	    if (b.turn==ChessBoard.WHITE) text = b.history.fullmoveNumber() + ". " + text;
+	    else if (i==0) text = b.history.fullmoveNumber() + "... " + text;
+	    b.history.play(move);
+	    wrap(out, line, text);
+	}
+	wrap(out, line, all.get("Result"));
+	out.append(line).append("\n\n");
+    }
+
+    public static String toPgn(ChessMoveHistory h, Map<String, String> tags) {
+	StringBuilder s = new StringBuilder();
+	try {
+	    write(h, tags, s);
+	} catch (IOException ioe) {
+	    throw new IllegalStateException(ioe);
+	}
+	return s.toString();
+    }
+
+    private static void wrap(Appendable out, StringBuilder line, String text) throws IOException {
+	if (line.length()>0 && line.length() + 1 + text.length() > 79) {
+	    out.append(line).append('\n');
+	    line.setLength(0);
+	}
+	if (line.length()>0) line.append(' ');
+	line.append(text);
+    }
+
+    /*
+     *java ChessPgn [file.pgn] [-threads n] [-errors n] [-games n]: replays every game in the file and reports games and plies
+     *per second. without a file it writes seeded random games to a temporary pgn with write, then reads that back
+     */
+    public static void main(String[] args) throws Exception {
+	Path path = null;
+	int threads = Runtime.getRuntime().availableProcessors();
+	int games = 20000;
+	int maxErrors = 10;
+	for (int i=0; i<args.length; i++) {
+	    if (args[i].equals("-threads")) threads = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-games")) games = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-errors")) maxErrors = Integer.parseInt(args[++i]);
+	    else path = Paths.get(args[i]);
+	}
+	boolean temporary = path==null;
+	if (temporary) {
+	    path = Files.createTempFile("games", ".pgn");
+	    long start = System.nanoTime();
+	    Random random = new Random(20160601L);
+	    int[] moves = new int[ChessMoveBuffer.CAPACITY];
+	    try (Writer out = Channels.newWriter(FileChannel.open(path, StandardOpenOption.WRITE), "UTF-8")) {
+		for (int g=0; g<games; g++) {
+		    ChessBoard b = new ChessBoard();
+		    b.setup();
+		    for (int ply=0; ply<200 && !b.history.isDraw(); ply++) {
+			int n = b.legalMoves(b.turn, moves, 0);
+			if (n==0) break;
+			b.history.play(moves[random.nextInt(n)]);
+		    }
+		    Map<String, String> tags = new LinkedHashMap<>();
+		    tags.put("Event", "random game");
+		    tags.put("Round", Integer.toString(g+1));
+		    write(b.history, tags, out);
+		}
+	    }
+	    pr(String.format("wrote %,d random games, %,d bytes, in %.2fs", games, Files.size(path), (System.nanoTime()-start)/1e9));
+	}
+
+	int[] printed = new int[1];
+	int limit = maxErrors;
+	try (Reader reader = new Reader(path)) {
+	    Stats stats = replayAll(reader, threads, e -> {
+		    synchronized (printed) {
+			if (printed[0]++ < limit) pr(e);
+		    }
+		});
+	    pr(threads + " threads, " + stats);
+	    if (temporary) Files.delete(path);
+	    if (stats.errors.sum()>0) System.exit(1);
+	}
+    }
+
+    static void pr(Object o) {
+	System.out.println(o);
+    }
+}
@@ -0,0 +1,128 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+ *a position in 32 bytes, for storing them by the hundred million: the occupancy bitboard, then a 4 bit code for
+ *each occupied square in square order (type, plus 8 for black), then the side to move, castling rights, passant
+ *square and move clocks. the twelve bitboards of a ChessBoard alone are 96.
+ *    0-7   occupancy (little endian)
+ *    8-23  piece codes, two to a byte, the first of each pair in the low half. a legal position has at most 32 pieces
+ *    24    bit 0 black to move, bits 1-4 castling rights (see ChessZobrist.castleRights), bit 5 passant pawn present
+ *    25    passant pawn's square, as ChessBoard keeps it
+ *    26    halfmove clock (at most 255)
+ *    28-29 fullmove number
+ *everything but encode and decode reads a single field straight out of the buffer, so a scan doesn't need a board.
+ *never meant to be initiated, like Chess
+ */
+public class ChessPositionCodec {
+    public static final int BYTES = 32;
+
+    static final int PIECES = 8;
+    static final int FLAGS = 24;
+    static final int PASSANT = 25;
+    static final int HALFMOVES = 26;
+    static final int FULLMOVES = 28;
+
+    static final int BLACK_TO_MOVE = 1;
+    static final int HAS_PASSANT = 1<<5;
+
+    //writes b into buf at off, which must be little endian
+    public static void encode(ChessBoard b, ByteBuffer buf, int off) {
+	encode(b, buf, off, b.history.halfmoveClock(), b.history.fullmoveNumber());
+    }
+
+    //with the clocks given, for a board whose game record isn't set up yet
+    static void encode(ChessBoard b, ByteBuffer buf, int off, int halfmoves, int fullmoves) {
+	long occ = b.getAll();
+	if (Long.bitCount(occ) > 32) throw new IllegalArgumentException("More than 32 pieces on the board");
+	buf.putLong(off, occ);
+	//sixteen codes to a long, little endian puts code i in the low half of byte i/2
+	long low = 0L;
+	long high = 0L;
+	int i = 0;
+	for (long l=occ; l != 0L; l &= l-1, i++) {
+	    int pos = Long.numberOfTrailingZeros(l);
+	    long code = b.typeAtPosition(pos) | (b.colorAtPosition(pos)==ChessBoard.BLACK? 8: 0);
+	    if (i<16) low |= code << 4*i;
+	    else high |= code << 4*(i-16);
+	}
+	buf.putLong(off + PIECES, low);
+	buf.putLong(off + PIECES + 8, high);
+	int flags = (b.turn==ChessBoard.BLACK? BLACK_TO_MOVE: 0) | ChessZobrist.castleRights(b)<<1 | (b.passant!=-1? HAS_PASSANT: 0);
+	buf.put(off + FLAGS, (byte) flags);
+	buf.put(off + PASSANT, (byte) (b.passant!=-1? b.passant: 0));
+	buf.put(off + HALFMOVES, (byte) Math.min(255, halfmoves));
+	buf.put(off + HALFMOVES + 1, (byte) 0);
+	buf.putShort(off + FULLMOVES, (short) fullmoves);
+	buf.putShort(off + FULLMOVES + 2, (short) 0);
+    }
+
+    public static byte[] encode(ChessBoard b) {
+	byte[] bytes = new byte[BYTES];
+	encode(b, ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN), 0);
+	return bytes;
+    }
+
+    //sets b up as the position at off in buf, with a new game record
+    public static void decode(ByteBuffer buf, int off, ChessBoard b) {
+	b.clear();
+	long occ = buf.getLong(off);
+	int i = 0;
+	for (long l=occ; l != 0L; l &= l-1, i++) {
+	    int code = code(buf, off, i);
+	    long bit = l & -l;
+	    if ((code & 8) == 0) b.bbWhite[code & 7] |= bit;
+	    else b.bbBlack[code & 7] |= bit;
+	}
+	int flags = buf.get(off + FLAGS);
+	b.turn = (flags & BLACK_TO_MOVE) != 0? ChessBoard.BLACK: ChessBoard.WHITE;
+	b.setCastleRights((flags>>1) & 15);
+	b.passant = (flags & HAS_PASSANT) != 0? buf.get(off + PASSANT): -1;
+	b.refresh();
+	b.history.setHalfmoveClock(halfmoveClock(buf, off));
+	b.history.setFullmoveNumber(fullmoveNumber(buf, off));
+    }
+
+    public static ChessBoard decode(byte[] bytes) {
+	ChessBoard b = new ChessBoard();
+	decode(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN), 0, b);
+	return b;
+    }
+
+    //the i-th piece code, counting occupied squares from square 0
+    private static int code(ByteBuffer buf, int off, int i) {
+	return (buf.get(off + PIECES + i/2) >>> (4*(i&1))) & 15;
+    }
+
+    public static long occupancy(ByteBuffer buf, int off) {
+	return buf.getLong(off);
+    }
+
+    //like ChessBoard.typeAtPosition and colorAtPosition, without a board
+    public static int typeAt(ByteBuffer buf, int off, int pos) {
+	long occ = buf.getLong(off);
+	if (((1L<<pos) & occ) == 0L) return ChessBoard.EMPTY;
+	return code(buf, off, Long.bitCount(occ & ((1L<<pos)-1))) & 7;
+    }
+    public static int colorAt(ByteBuffer buf, int off, int pos) {
+	long occ = buf.getLong(off);
+	if (((1L<<pos) & occ) == 0L) return 0;
+	return (code(buf, off, Long.bitCount(occ & ((1L<<pos)-1))) & 8) == 0? ChessBoard.WHITE: ChessBoard.BLACK;
+    }
+
+    public static int turn(ByteBuffer buf, int off) {
+	return (buf.get(off + FLAGS) & BLACK_TO_MOVE) != 0? ChessBoard.BLACK: ChessBoard.WHITE;
+    }
+    public static int castleRights(ByteBuffer buf, int off) {
+	return (buf.get(off + FLAGS)>>1) & 15;
+    }
+    public static int passant(ByteBuffer buf, int off) {
+	return (buf.get(off + FLAGS) & HAS_PASSANT) != 0? buf.get(off + PASSANT): -1;
+    }
+    public static int halfmoveClock(ByteBuffer buf, int off) {
+	return buf.get(off + HALFMOVES) & 0xFF;
+    }
+    public static int fullmoveNumber(ByteBuffer buf, int off) {
+	return buf.getShort(off + FULLMOVES) & 0xFFFF;
+    }
+}
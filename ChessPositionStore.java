@@ -0,0 +1,218 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+ *a file of positions in ChessPositionCodec's 32 byte format, appended through a write buffer and read back through
+ *memory mapped segments, so reading one is a few loads out of the page cache and a scan runs as fast as the disk.
+ *records are only turned into boards by get, everything else hands out the mapped buffer and an offset.
+ *the header is one record long, so records never straddle the 1GB segments. not safe to share between threads,
+ *each can open its own on the same file for reading
+ */
+public class ChessPositionStore implements Closeable {
+    static final int MAGIC = 0x31535043; //"CPS1" little endian
+    static final int HEADER = ChessPositionCodec.BYTES;
+    static final int SEGMENT_BITS = 30;
+    static final int SEGMENT = 1<<SEGMENT_BITS;
+    //records batched up before a write
+    static final int BATCH = 4096;
+
+    //called on each record of a scan, with the mapped buffer it lives in and its offset there
+    public interface Visitor {
+	void visit(long index, ByteBuffer buf, int off);
+    }
+
+    final FileChannel channel;
+    final boolean writable;
+    //records appended, and how many of them have been written out
+    long size;
+    long flushed;
+    final ByteBuffer pending;
+    ByteBuffer[] segments = new ByteBuffer[0];
+
+    //opens path, creating it if writable and it isn't there yet
+    public ChessPositionStore(Path path, boolean writable) throws IOException {
+	this.writable = writable;
+	channel = writable? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)
+	    : FileChannel.open(path, StandardOpenOption.READ);
+	pending = ByteBuffer.allocateDirect(BATCH*ChessPositionCodec.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+	ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+	if (channel.size()==0L && writable) {
+	    writeHeader();
+	} else {
+	    while (header.hasRemaining() && channel.read(header, header.position()) >= 0);
+	    if (header.position()<HEADER || header.getInt(0)!=MAGIC || header.getInt(4)!=ChessPositionCodec.BYTES) {
+		channel.close();
+		throw new IOException(path + " is not a position store");
+	    }
+	    //the count goes by the file, a writer that died before updating the header still leaves whole records
+	    size = flushed = (channel.size()-HEADER)/ChessPositionCodec.BYTES;
+	}
+    }
+
+    private void writeHeader() throws IOException {
+	ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+	header.putInt(0, MAGIC).putInt(4, ChessPositionCodec.BYTES).putLong(8, flushed);
+	while (header.hasRemaining()) channel.write(header, header.position());
+    }
+
+    public long size() {
+	return size;
+    }
+
+    public long append(ChessBoard b) throws IOException {
+	if (!writable) throw new IllegalStateException("store opened read only");
+	if (!pending.hasRemaining()) flush();
+	ChessPositionCodec.encode(b, pending, pending.position());
+	pending.position(pending.position() + ChessPositionCodec.BYTES);
+	return size++;
+    }
+
+    //writes out the appended records and the count in the header
+    public void flush() throws IOException {
+	if (!writable || flushed==size) return;
+	pending.flip();
+	long at = HEADER + flushed*ChessPositionCodec.BYTES;
+	while (pending.hasRemaining()) at += channel.write(pending, at);
+	pending.clear();
+	flushed = size;
+	writeHeader();
+    }
+
+    //the mapped buffer holding record index, see offset. maps (or remaps, once the file has grown) the segment it is in
+    public ByteBuffer buffer(long index) throws IOException {
+	if (index<0 || index>=size) throw new IndexOutOfBoundsException("no position " + index + " of " + size);
+	if (index>=flushed) flush();
+	long at = HEADER + index*ChessPositionCodec.BYTES;
+	int s = (int) (at>>>SEGMENT_BITS);
+	if (s>=segments.length) {
+	    ByteBuffer[] grown = new ByteBuffer[s+1];
+	    System.arraycopy(segments, 0, grown, 0, segments.length);
+	    segments = grown;
+	}
+	int off = (int) (at & (SEGMENT-1));
+	if (segments[s]==null || segments[s].capacity() < off + ChessPositionCodec.BYTES) {
+	    long start = (long) s<<SEGMENT_BITS;
+	    long length = Math.min(SEGMENT, channel.size() - start);
+	    segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	return segments[s];
+    }
+
+    public static int offset(long index) {
+	return (int) ((HEADER + index*ChessPositionCodec.BYTES) & (SEGMENT-1));
+    }
+
+    //sets b up as position index
+    public void get(long index, ChessBoard b) throws IOException {
+	ChessPositionCodec.decode(buffer(index), offset(index), b);
+    }
+
+    public ChessBoard get(long index) throws IOException {
+	ChessBoard b = new ChessBoard();
+	get(index, b);
+	return b;
+    }
+
+    //visits records [from, to) in order, a segment at a time
+    public void scan(long from, long to, Visitor visitor) throws IOException {
+	to = Math.min(to, size);
+	for (long i=from; i<to; ) {
+	    ByteBuffer buf = buffer(i);
+	    int off = offset(i);
+	    //the rest of this segment, in one tight loop
+	    long end = Math.min(to, i + (buf.capacity() - off)/ChessPositionCodec.BYTES);
+	    for (; i<end; i++, off += ChessPositionCodec.BYTES) visitor.visit(i, buf, off);
+	}
+    }
+
+    public void close() throws IOException {
+	flush();
+	channel.close();
+    }
+
+    /*
+     *java ChessPositionStore [file] [-n positions]: adds positions from seeded random games (to a temporary file
+     *if none is given), scans the whole store back without making boards, and checks a sample decodes to the fen
+     *it was written from. MB/s both ways
+     */
+    public static void main(String[] args) throws IOException {
+	Path path = null;
+	long n = 10000000L;
+	for (int i=0; i<args.length; i++) {
+	    if (args[i].equals("-n")) n = Long.parseLong(args[++i]);
+	    else path = Paths.get(args[i]);
+	}
+	boolean temporary = path==null;
+	if (temporary) path = Files.createTempFile("positions", ".cps");
+
+	Random random = new Random(20160601L);
+	int[] moves = new int[ChessMoveBuffer.CAPACITY];
+	List<Long> sampleIndices = new ArrayList<>();
+	List<String> sampleFens = new ArrayList<>();
+	ChessBoard b = new ChessBoard();
+	b.setup();
+	long start = System.nanoTime();
+	long before;
+	try (ChessPositionStore store = new ChessPositionStore(path, true)) {
+	    //an existing store is added to, not replaced
+	    before = Files.size(path);
+	    for (long i=0; i<n; i++) {
+		long index = store.append(b);
+		if (i%9973==0) {
+		    sampleIndices.add(index);
+		    sampleFens.add(b.toFen());
+		}
+		int count = b.legalMoves(b.turn, moves, 0);
+		if (count==0 || b.history.size()>=200) {
+		    b.setup();
+		} else {
+		    int move = moves[random.nextInt(count)];
+		    b.makeMove(move);
+		    b.history.add(move);
+		}
+	    }
+	}
+	long written = System.nanoTime()-start;
+	long bytes = Files.size(path) - before;
+	pr(String.format("wrote %,d positions, %,d bytes (%.1f per position) in %.2fs, %.0f MB/s with move generation",
+			 n, bytes, (double) bytes/n, written/1e9, bytes/1e6/(written/1e9)));
+
+	try (ChessPositionStore store = new ChessPositionStore(path, false)) {
+	    long[] totals = new long[2];
+	    start = System.nanoTime();
+	    store.scan(0L, store.size(), (i, buf, off) -> {
+		    totals[0] += Long.bitCount(ChessPositionCodec.occupancy(buf, off));
+		    if (ChessPositionCodec.turn(buf, off)==ChessBoard.BLACK) totals[1]++;
+		});
+	    long scanned = System.nanoTime()-start;
+	    pr(String.format("scanned %,d positions in %.3fs, %.0f MB/s, %.1f M positions/s (%.2f pieces each, %,d black to move)",
+			     store.size(), scanned/1e9, store.size()*ChessPositionCodec.BYTES/1e6/(scanned/1e9), store.size()/1e6/(scanned/1e9),
+			     (double) totals[0]/store.size(), totals[1]));
+
+	    int mismatches = 0;
+	    ChessBoard decoded = new ChessBoard();
+	    for (int s=0; s<sampleIndices.size(); s++) {
+		store.get(sampleIndices.get(s), decoded);
+		if (!decoded.toFen().equals(sampleFens.get(s)) && mismatches++ < 5)
+		    pr("position " + sampleIndices.get(s) + " was " + sampleFens.get(s) + " but reads " + decoded.toFen());
+	    }
+	    pr(sampleIndices.size() + " sampled positions decoded, " + mismatches + " mismatches");
+	    if (temporary) Files.delete(path);
+	    if (mismatches!=0) System.exit(1);
+	}
+    }
+
+    static void pr(Object o) {
+	System.out.println(o);
+    }
+}
@@ -0,0 +1,882 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/*
+ *endgame tables: the plies to mate with best play from every position with a few pieces, worked out backwards from
+ *the mates (retrograde analysis) and kept a byte a position in files that are memory mapped to probe.
+ *a table is named by its material, white's pieces then black's, stronger side first: KQK, KRKP, KBNK ... and a
+ *position the other way round (KKQ) is looked up in KQK with the colours swapped and the board turned over.
+ *indices are cut down by symmetry: without pawns the white king is mirrored into the a1-d1-d4 triangle, 10 squares
+ *instead of 64, with pawns it can only be mirrored left to right, onto the a-d files.
+ *
+ *generation keeps nothing on the heap that grows with the table: the values are a direct buffer (the file's image,
+ *written out at the end) and the work array is a direct bitmap, a bit a position, of those worth looking at again.
+ *each pass is split into chunks handed out to a pool of threads, the same way ChessEpd hands out positions.
+ *captures and promotions lead into smaller tables, which are generated first and probed as the bigger one is.
+ *positions with castling rights aren't in any table, probe says UNKNOWN for those
+ */
+public class ChessTablebase {
+    static final int MAGIC = 0x31425443; //"CTB1" little endian
+    static final int HEADER = 16;
+    public static final int MAX_PIECES = 5;
+    //what probe returns when no table has the position
+    public static final int UNKNOWN = Integer.MIN_VALUE;
+
+    //a stored value: 0 for a draw (or, while generating, nothing known yet), ILLEGAL for a position that can't come
+    //up, otherwise one more than the plies to mate, which are odd when the side to move mates and even when it is mated
+    static final int ILLEGAL = 255;
+    static final int MAX_PLIES = 253;
+
+    //the order pieces are named and indexed in after the king
+    static final int[] ORDER = {ChessBoard.QUEEN, ChessBoard.ROOK, ChessBoard.BISHOP, ChessBoard.KNIGHT, ChessBoard.PAWN};
+    static final String LETTERS = "PBNRQK";
+
+    //positions handed out to a thread at a time, a multiple of 64 so no two threads share a word of the bitmap
+    static final int CHUNK = 1<<12;
+
+    //by whether the table has pawns: the symmetry taking each white king square into its part of the board (bits 0-5
+    //are xored onto a square, bit 6 then flips it along the a1-h8 diagonal), and the squares of that part in index order
+    static final int[][] SYMMETRY = new int[2][64];
+    static final int[][] KING_SLOT = new int[2][64];
+    static final int[][] KING_SQUARE = {new int[10], new int[32]};
+    static final int[] TRANSPOSE = new int[64];
+    static {
+	for (int pos=0; pos<64; pos++) {
+	    int file = 7 - (pos&7);
+	    int rank = pos>>3;
+	    TRANSPOSE[pos] = 8*file + 7-rank;
+	    int sym = file>3? 7: 0;
+	    SYMMETRY[1][pos] = sym;
+	    sym |= rank>3? 56: 0;
+	    int p = pos ^ sym;
+	    if ((p>>3) > 7-(p&7)) sym |= 64;
+	    SYMMETRY[0][pos] = sym;
+	}
+	int[] slots = new int[2];
+	for (int pos=0; pos<64; pos++) {
+	    int file = 7 - (pos&7);
+	    int rank = pos>>3;
+	    KING_SLOT[0][pos] = KING_SLOT[1][pos] = -1;
+	    if (rank<=file && file<=3) {
+		KING_SLOT[0][pos] = slots[0];
+		KING_SQUARE[0][slots[0]++] = pos;
+	    }
+	    if (file<=3) {
+		KING_SLOT[1][pos] = slots[1];
+		KING_SQUARE[1][slots[1]++] = pos;
+	    }
+	}
+    }
+
+    static int apply(int pos, int sym) {
+	pos ^= sym & 63;
+	return (sym & 64) != 0? TRANSPOSE[pos]: pos;
+    }
+
+    //what a piece of type and color on pos attacks (for a pawn, only its captures)
+    static long attacks(int type, int color, int pos, long occ) {
+	switch (type) {
+	case ChessBoard.PAWN: return Chess.pawnMasks[pos][2-color];
+	case ChessBoard.KNIGHT: return Chess.knightMasks[pos];
+	case ChessBoard.BISHOP: return Chess.bishopMask(occ, pos);
+	case ChessBoard.ROOK: return Chess.rookMask(occ, pos);
+	case ChessBoard.QUEEN: return Chess.bishopMask(occ, pos) | Chess.rookMask(occ, pos);
+	default: return Chess.kingMasks[pos];
+	}
+    }
+
+    //the material as a key, four bits a piece count: white's six types then black's
+    static long material(ChessBoard b) {
+	long m = 0L;
+	for (int type=0; type<6; type++) {
+	    m += (long) Long.bitCount(b.bbWhite[type]) << 4*type;
+	    m += (long) Long.bitCount(b.bbBlack[type]) << 4*(type+6);
+	}
+	return m;
+    }
+    //the same material with the colours swapped
+    static long swap(long material) {
+	return material>>>24 | (material & 0xFFFFFFL)<<24;
+    }
+
+    //the name of a table for material, stronger side (by ChessEngine.VALUES) first
+    static String name(long material) {
+	long swapped = swap(material);
+	long strength = 0L;
+	for (int type=0; type<5; type++)
+	    strength += ChessEngine.VALUES[type] * (((material>>>4*type) & 15) - ((material>>>4*(type+6)) & 15));
+	if (strength<0 || strength==0 && swapped>material) material = swapped;
+	StringBuilder sb = new StringBuilder();
+	for (int side=0; side<2; side++) {
+	    sb.append('K');
+	    for (int type: ORDER)
+		for (long k=(material>>>4*(type + 6*side)) & 15; k>0; k--) sb.append(LETTERS.charAt(type));
+	}
+	return sb.toString();
+    }
+
+    //one material's table
+    public static class Table {
+	public final String name;
+	final long material;
+	//each piece's type and colour: the white king, the black king, then the others white first, in ORDER
+	final int[] types;
+	final int[] colors;
+	final int count;
+	//1 if there are pawns, which symmetry the index uses
+	final int pawns;
+	//positions with each side to move, white's first
+	final int perSide;
+	ByteBuffer values;
+	//the longest mate and a position it is from, -1 if there are no mates at all
+	int longest;
+	int longestIndex;
+
+	Table(String name) {
+	    this.name = name;
+	    int split = name.indexOf('K', 1);
+	    if (!name.startsWith("K") || split<0 || name.indexOf('K', split+1)>=0 || name.length()>MAX_PIECES)
+		throw new IllegalArgumentException("Bad table name " + name + ", like KQK or KRKP, at most " + MAX_PIECES + " pieces");
+	    count = name.length();
+	    types = new int[count];
+	    colors = new int[count];
+	    types[0] = types[1] = ChessBoard.KING;
+	    colors[0] = ChessBoard.WHITE;
+	    colors[1] = ChessBoard.BLACK;
+	    long m = 1L<<4*ChessBoard.KING | 1L<<4*(ChessBoard.KING+6);
+	    int i = 2;
+	    boolean withPawns = false;
+	    for (int side=0; side<2; side++) {
+		String letters = side==0? name.substring(1, split): name.substring(split+1);
+		for (int type: ORDER) {
+		    for (char c: letters.toCharArray()) {
+			if (LETTERS.indexOf(c)<0 || LETTERS.indexOf(c)==ChessBoard.KING)
+			    throw new IllegalArgumentException("Bad table name " + name + ": no piece " + c);
+			if (LETTERS.indexOf(c)!=type) continue;
+			types[i] = type;
+			colors[i++] = side==0? ChessBoard.WHITE: ChessBoard.BLACK;
+			m += 1L << 4*(type + 6*side);
+			withPawns |= type==ChessBoard.PAWN;
+		    }
+		}
+	    }
+	    material = m;
+	    pawns = withPawns? 1: 0;
+	    perSide = KING_SQUARE[pawns].length << 6*(count-1);
+	}
+
+	public int size() {
+	    return 2*perSide;
+	}
+
+	int value(int index) {
+	    return values.get(index) & 0xFF;
+	}
+
+	/*
+	 *the index of the position with piece i on sq[i] and turn to move. with the king on the a1-h8 diagonal a position
+	 *and its mirror image along it are both in the triangle, so the first piece off the diagonal is put below it
+	 */
+	int index(int[] sq, int turn) {
+	    int sym = SYMMETRY[pawns][sq[0]];
+	    int king = apply(sq[0], sym);
+	    if (pawns==0 && (king>>3) == 7-(king&7)) {
+		for (int i=1; i<count; i++) {
+		    int pos = apply(sq[i], sym);
+		    if ((pos>>3) == 7-(pos&7)) continue;
+		    if ((pos>>3) > 7-(pos&7)) sym ^= 64;
+		    break;
+		}
+	    }
+	    int index = KING_SLOT[pawns][king];
+	    for (int i=1; i<count; i++) index = index<<6 | apply(sq[i], sym);
+	    return turn==ChessBoard.WHITE? index: index + perSide;
+	}
+
+	//the same for pieces of another table's (captured ones on -1), with colours swapped and the board turned over if flip
+	int index(int[] otherTypes, int[] otherColors, int[] sq, int turn, boolean flip, int[] scratch) {
+	    int used = 0;
+	    for (int i=0; i<count; i++) {
+		int j = 0;
+		while (sq[j]<0 || (used & 1<<j)!=0 || otherTypes[j]!=types[i] || (flip? -otherColors[j]: otherColors[j])!=colors[i]) j++;
+		used |= 1<<j;
+		scratch[i] = flip? sq[j]^56: sq[j];
+	    }
+	    return index(scratch, flip? -turn: turn);
+	}
+
+	//and for a board with this material (or, if flip, the material with colours swapped), sq being scratch space
+	//for MAX_PIECES squares
+	int index(ChessBoard b, boolean flip, int[] sq) {
+	    long used = 0L;
+	    for (int i=0; i<count; i++) {
+		int pos = Long.numberOfTrailingZeros(b.bbPieces(flip? -colors[i]: colors[i], types[i]) & ~used);
+		used |= 1L<<pos;
+		sq[i] = flip? pos^56: pos;
+	    }
+	    return index(sq, flip? -b.turn: b.turn);
+	}
+
+	//the other way: fills in sq and returns the side to move
+	int decode(int index, int[] sq) {
+	    int turn = ChessBoard.WHITE;
+	    if (index>=perSide) {
+		index -= perSide;
+		turn = ChessBoard.BLACK;
+	    }
+	    for (int i=count-1; i>0; i--, index >>>= 6) sq[i] = index & 63;
+	    sq[0] = KING_SQUARE[pawns][index];
+	    return turn;
+	}
+
+	//sets b up as position index
+	public void setup(int index, ChessBoard b) {
+	    int[] sq = new int[count];
+	    int turn = decode(index, sq);
+	    b.clear();
+	    for (int i=0; i<count; i++) (colors[i]==ChessBoard.WHITE? b.bbWhite: b.bbBlack)[types[i]] |= 1L<<sq[i];
+	    b.turn = turn;
+	    b.refresh();
+	}
+
+	public String toString() {
+	    return String.format("%s: %,d positions, longest mate %d plies", name, size(), longest);
+	}
+    }
+
+    final Path dir;
+    //each table once, under its own name's material in materials. a few dozen at most, looked through in order
+    //rather than kept in a map, so a probe doesn't box its key
+    long[] materials = new long[0];
+    Table[] tables = new Table[0];
+    //the most pieces of any table, boards with more aren't looked at
+    int maxPieces;
+    //called with each table as it is generated, sub-tables first
+    public Consumer<Table> listener;
+
+    //opens every table in dir, which is created if it isn't there
+    public ChessTablebase(Path dir) throws IOException {
+	this.dir = dir;
+	Files.createDirectories(dir);
+	try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.ctb")) {
+	    for (Path file: files) {
+		String name = file.getFileName().toString();
+		open(new Table(name.substring(0, name.length()-4)), file);
+	    }
+	}
+    }
+
+    private void open(Table table, Path file) throws IOException {
+	try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+	    ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER).order(ByteOrder.LITTLE_ENDIAN);
+	    if (channel.size()!=HEADER + (long) table.size() || header.getInt(0)!=MAGIC || header.getInt(4)!=table.perSide)
+		throw new IOException(file + " is not a table for " + table.name);
+	    table.longest = header.getInt(8);
+	    table.longestIndex = header.getInt(12);
+	    table.values = channel.map(FileChannel.MapMode.READ_ONLY, HEADER, table.size());
+	}
+	int n = tables.length;
+	Table[] more = Arrays.copyOf(tables, n+1);
+	more[n] = table;
+	long[] keys = Arrays.copyOf(materials, n+1);
+	keys[n] = table.material;
+	tables = more;
+	materials = keys;
+	maxPieces = Math.max(maxPieces, table.count);
+    }
+
+    //the table for material, under its own name or with colours swapped
+    public Table find(long material) {
+	Table t = get(material);
+	return t!=null? t: get(swap(material));
+    }
+
+    private Table get(long material) {
+	for (int i=0; i<materials.length; i++) if (materials[i]==material) return tables[i];
+	return null;
+    }
+
+    public Table find(String name) {
+	return find(new Table(name).material);
+    }
+
+    /*
+     *the score of b for its side to move, the way the engine scores mates: ChessEngine.MATE less the plies to mate,
+     *negated if it is the side getting mated, 0 for a draw. UNKNOWN if there is no table for it or castling is possible.
+     *b is left as it was, though it is played on if a passant capture is possible
+     */
+    public int probe(ChessBoard b) {
+	return probe(b, new int[MAX_PIECES], new int[ChessMoveBuffer.CAPACITY]);
+    }
+
+    //the same with the caller's scratch space, MAX_PIECES squares and a move buffer, for the search's every node
+    public int probe(ChessBoard b, int[] sq, int[] moves) {
+	if (Long.bitCount(b.getAll()) > maxPieces || canCastle(b)) return UNKNOWN;
+	long m = material(b);
+	Table t = get(m);
+	boolean flip = t==null;
+	if (flip) t = get(swap(m));
+	if (t==null) return UNKNOWN;
+	int score = score(t.value(t.index(b, flip, sq)));
+	//tables are of positions without a passant capture, if there is one it is a move more to choose from
+	if (score==UNKNOWN || !b.passantPossible()) return score;
+	int n = b.legalMoves(b.turn, moves, 0);
+	for (int i=0; i<n; i++) {
+	    if (!ChessMove.isPassant(moves[i])) continue;
+	    b.makeMove(moves[i]);
+	    //with the capture made there is no passant left, so moves isn't touched again underneath
+	    int after = probe(b, sq, moves);
+	    b.unmakeMove();
+	    if (after==UNKNOWN) return UNKNOWN;
+	    score = Math.max(score, parent(after));
+	}
+	return score;
+    }
+
+    //the move keeping the best score probe gives, 0 if any move leads somewhere the tables don't cover
+    public int bestMove(ChessBoard b) {
+	if (Long.bitCount(b.getAll()) > maxPieces || canCastle(b)) return 0;
+	int[] moves = new int[ChessMoveBuffer.CAPACITY];
+	int n = b.legalMoves(b.turn, moves, 0);
+	int best = 0;
+	int bestScore = -ChessEngine.INFINITE;
+	for (int i=0; i<n; i++) {
+	    b.makeMove(moves[i]);
+	    int score = probe(b);
+	    b.unmakeMove();
+	    if (score==UNKNOWN) return 0;
+	    if (parent(score) > bestScore) {
+		bestScore = parent(score);
+		best = moves[i];
+	    }
+	}
+	return best;
+    }
+
+    //a stored value as a score
+    static int score(int value) {
+	if (value==ILLEGAL) return UNKNOWN;
+	if (value==0) return 0;
+	int plies = value-1;
+	return (plies&1)!=0? ChessEngine.MATE - plies: -ChessEngine.MATE + plies;
+    }
+
+    //the score a move is worth, given the score of the position it leads to
+    static int parent(int score) {
+	return score>ChessEngine.MATE_BOUND? -score + 1: score<-ChessEngine.MATE_BOUND? -score - 1: -score;
+    }
+
+    //whether either side still has a castle it could make some day, which no table knows about
+    static boolean canCastle(ChessBoard b) {
+	for (int color=ChessBoard.WHITE; color>=ChessBoard.BLACK; color-=2) {
+	    int king = color==ChessBoard.WHITE? 3: 59;
+	    if (b.bbPieces(color, ChessBoard.KING)!=1L<<king) continue;
+	    long rooks = b.bbPieces(color, ChessBoard.ROOK);
+	    if (b.castleRight(color, true) && (rooks & 1L<<king-3)!=0L
+		|| b.castleRight(color, false) && (rooks & 1L<<king+4)!=0L) return true;
+	}
+	return false;
+    }
+
+    /*
+     *makes the table name (and any it leads to by a capture or promotion that aren't there yet) with threads threads,
+     *writes it to dir and maps it. one that is already there is just returned
+     */
+    public synchronized Table generate(String name, int threads) throws IOException {
+	Table table = new Table(name);
+	Table existing = find(table.material);
+	if (existing!=null) return existing;
+	Generation g = new Generation(table);
+	for (int i=0; i<g.links.length; i++) {
+	    if (g.linked[i]==0L) continue;
+	    if (find(g.linked[i])==null) generate(name(g.linked[i]), threads);
+	    g.links[i] = find(g.linked[i]);
+	    g.flips[i] = g.links[i].material!=g.linked[i];
+	}
+	long start = System.nanoTime();
+	ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+	try {
+	    Worker[] workers = new Worker[Math.max(1, threads)];
+	    for (int t=0; t<workers.length; t++) workers[t] = new Worker(g);
+	    g.run(pool, workers, Worker.FIRST);
+	    for (g.n=1; g.n <= Math.max(g.longest.get()+1, g.lastDue); g.n++) {
+		synchronized (g.due) {
+		    for (int index: g.due.get(g.n)) g.mark(index);
+		}
+		g.run(pool, workers, Worker.MARK);
+		g.run(pool, workers, Worker.RESOLVE);
+	    }
+	} finally {
+	    pool.shutdown();
+	}
+	table.longest = g.longest.get();
+	table.longestIndex = -1;
+	for (int i=0; i<table.size(); i++) {
+	    if (table.value(i)==table.longest+1) {
+		table.longestIndex = i;
+		break;
+	    }
+	}
+	g.nanos = System.nanoTime()-start;
+
+	Path file = dir.resolve(name + ".ctb");
+	Path partial = dir.resolve(name + ".ctb.part");
+	try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+	    ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+	    header.putInt(0, MAGIC).putInt(4, table.perSide).putInt(8, table.longest).putInt(12, table.longestIndex);
+	    while (header.hasRemaining()) channel.write(header);
+	    ByteBuffer values = table.values.duplicate();
+	    values.clear();
+	    while (values.hasRemaining()) channel.write(values);
+	}
+	Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	open(table, file);
+	if (listener!=null) listener.accept(table);
+	return table;
+    }
+
+    //what one table's generation shares between its threads
+    static class Generation {
+	final Table table;
+	//the work array: a bit a position, set for the positions to look at again in the next pass
+	final ByteBuffer candidates;
+	//the tables captures and promotions lead to, by link(), with whether they are looked up with colours swapped
+	final long[] linked = new long[2*6*6];
+	final Table[] links = new Table[2*6*6];
+	final boolean[] flips = new boolean[2*6*6];
+	//positions to look at again in a given pass, the rare ones that hang on a passant capture, see Worker.doublePush
+	final List<List<Integer>> due = new ArrayList<>();
+	int lastDue;
+	final AtomicInteger longest = new AtomicInteger();
+	final AtomicInteger next = new AtomicInteger();
+	//the pass running, which finds the positions n plies from mate
+	int n;
+	long nanos;
+
+	Generation(Table table) {
+	    this.table = table;
+	    table.values = ByteBuffer.allocateDirect(table.size());
+	    candidates = ByteBuffer.allocateDirect((table.size()+63)/64*8);
+	    for (int i=0; i<=MAX_PLIES+1; i++) due.add(new ArrayList<>());
+	    //every capture (of each type the other side has) and promotion either side could make
+	    for (int mover=ChessBoard.WHITE; mover>=ChessBoard.BLACK; mover-=2) {
+		int side = mover==ChessBoard.WHITE? 0: 1;
+		boolean pawns = ((table.material>>>4*(ChessBoard.PAWN + 6*side)) & 15) != 0;
+		for (int captured=ChessBoard.EMPTY; captured<ChessBoard.KING; captured++) {
+		    if (captured!=ChessBoard.EMPTY && ((table.material>>>4*(captured + 6*(1-side))) & 15) == 0) continue;
+		    for (int promotion=ChessBoard.EMPTY; promotion<ChessBoard.KING; promotion++) {
+			if (captured==ChessBoard.EMPTY && promotion==ChessBoard.EMPTY || promotion==ChessBoard.PAWN) continue;
+			if (promotion!=ChessBoard.EMPTY && !pawns) continue;
+			long m = table.material;
+			if (captured!=ChessBoard.EMPTY) m -= 1L << 4*(captured + 6*(1-side));
+			if (promotion!=ChessBoard.EMPTY) m += (1L << 4*(promotion + 6*side)) - (1L << 4*(ChessBoard.PAWN + 6*side));
+			linked[link(mover, captured, promotion)] = m;
+		    }
+		}
+	    }
+	}
+
+	static int link(int mover, int captured, int promotion) {
+	    return ((mover==ChessBoard.WHITE? 0: 6) + captured+1)*6 + promotion+1;
+	}
+
+	void mark(int index) {
+	    int at = index>>>6<<3;
+	    candidates.putLong(at, candidates.getLong(at) | 1L<<(index&63));
+	}
+
+	void schedule(int index, int pass) {
+	    if (pass>MAX_PLIES+1) throw new IllegalStateException(table.name + " has mates too long to store");
+	    synchronized (due) {
+		due.get(pass).add(index);
+		lastDue = Math.max(lastDue, pass);
+	    }
+	}
+
+	//one pass over the whole table, every worker on its own thread taking chunks until there are none left
+	void run(ExecutorService pool, Worker[] workers, int pass) {
+	    next.set(0);
+	    List<Future<?>> running = new ArrayList<>();
+	    for (Worker w: workers) running.add(pool.submit(() -> w.run(pass)));
+	    try {
+		for (Future<?> f: running) f.get();
+	    } catch (InterruptedException | ExecutionException e) {
+		throw new RuntimeException(e);
+	    }
+	}
+    }
+
+    //one thread's part of a generation, with its own copy of the pieces to move around
+    static class Worker {
+	static final int FIRST = 0;
+	static final int MARK = 1;
+	static final int RESOLVE = 2;
+
+	final Generation g;
+	final Table table;
+	final int count;
+	final int[] types;
+	final int[] colors;
+	final int[] sq;
+	final int[] scratch = new int[MAX_PIECES];
+	//candidates found by MARK, set in the bitmap a batch at a time
+	final int[] batch = new int[4096];
+	int batched;
+	//the position being resolved
+	int index;
+
+	Worker(Generation g) {
+	    this.g = g;
+	    table = g.table;
+	    count = table.count;
+	    types = table.types.clone();
+	    colors = table.colors.clone();
+	    sq = new int[count];
+	}
+
+	void run(int pass) {
+	    int chunks = (table.size() + CHUNK-1)/CHUNK;
+	    for (int c = g.next.getAndIncrement(); c < chunks; c = g.next.getAndIncrement()) {
+		int from = c*CHUNK;
+		int to = Math.min(table.size(), from + CHUNK);
+		if (pass==FIRST) {
+		    for (index=from; index<to; index++) {
+			int turn = table.decode(index, sq);
+			//the second of two indices for a position along the diagonal is left out too
+			if (!legal(turn) || table.index(sq, turn)!=index) table.values.put(index, (byte) ILLEGAL);
+			else resolve(turn, 0);
+		    }
+		} else if (pass==MARK) {
+		    for (int i=from; i<to; i++) if (table.value(i)==g.n) unmoves(i);
+		} else {
+		    for (int at=from>>>3; at<(to+7)>>>3; at+=8) {
+			long bits = g.candidates.getLong(at);
+			if (bits==0L) continue;
+			g.candidates.putLong(at, 0L);
+			for (; bits != 0L; bits &= bits-1) {
+			    index = (at<<3) + Long.numberOfTrailingZeros(bits);
+			    int v = table.value(index);
+			    //only unknown positions and wins that might be found to be quicker
+			    if (v==0 || v!=ILLEGAL && (v&1)==0 && v-1>g.n) resolve(table.decode(index, sq), g.n);
+			}
+		    }
+		}
+	    }
+	    if (batched>0) flush();
+	}
+
+	boolean legal(int turn) {
+	    long occ = 0L;
+	    for (int i=0; i<count; i++) {
+		occ |= 1L<<sq[i];
+		if (types[i]==ChessBoard.PAWN && (sq[i]<8 || sq[i]>=56)) return false;
+	    }
+	    return Long.bitCount(occ)==count && !attacked(sq[turn==ChessBoard.WHITE? 1: 0], turn, occ);
+	}
+
+	boolean attacked(int target, int by, long occ) {
+	    for (int j=0; j<count; j++)
+		if (sq[j]>=0 && colors[j]==by && (attacks(types[j], by, sq[j], occ) & 1L<<target) != 0L) return true;
+	    return false;
+	}
+
+	int pieceAt(int pos) {
+	    for (int j=0; j<count; j++) if (sq[j]==pos) return j;
+	    return -1;
+	}
+
+	/*
+	 *plays every move in the position in sq and stores what it comes to, if that is known by now: the quickest mate
+	 *into a known loss, or the slowest loss if every move is a known win for the other side. on pass n every
+	 *position the table has at fewer than n plies is done, so a value under n is final and anything else unknown
+	 */
+	void resolve(int turn, int n) {
+	    long occ = 0L;
+	    long mine = 0L;
+	    for (int i=0; i<count; i++) {
+		occ |= 1L<<sq[i];
+		if (colors[i]==turn) mine |= 1L<<sq[i];
+	    }
+	    int king = turn==ChessBoard.WHITE? 0: 1;
+	    int quickest = Integer.MAX_VALUE;
+	    int slowest = -1;
+	    boolean allLost = true;
+	    int moves = 0;
+	    for (int i=0; i<count; i++) {
+		if (colors[i]!=turn) continue;
+		int from = sq[i];
+		long targets;
+		if (types[i]==ChessBoard.PAWN) {
+		    int push = from + 8*turn;
+		    targets = attacks(ChessBoard.PAWN, turn, from, occ) & occ & ~mine;
+		    if ((occ & 1L<<push) == 0L) {
+			targets |= 1L<<push;
+			if ((from>>3) == (turn==ChessBoard.WHITE? 1: 6) && (occ & 1L<<push+8*turn) == 0L) targets |= 1L<<push+8*turn;
+		    }
+		} else {
+		    targets = attacks(types[i], turn, from, occ) & ~mine;
+		}
+		for (; targets != 0L; targets &= targets-1) {
+		    int to = Long.numberOfTrailingZeros(targets);
+		    int taken = pieceAt(to);
+		    sq[i] = to;
+		    if (taken>=0) sq[taken] = -1;
+		    if (!attacked(sq[king], -turn, occ & ~(1L<<from) | 1L<<to)) {
+			moves++;
+			boolean promotes = types[i]==ChessBoard.PAWN && (to>>3) == (turn==ChessBoard.WHITE? 7: 0);
+			int captured = taken>=0? types[taken]: ChessBoard.EMPTY;
+			for (int promotion=promotes? ChessBoard.QUEEN: ChessBoard.EMPTY; promotion!=ChessBoard.PAWN; promotion--) {
+			    if (promotes) types[i] = promotion;
+			    int plies;
+			    if (promotes || taken>=0) plies = converted(turn, captured, promotion);
+			    else if (types[i]==ChessBoard.PAWN && to-from==16*turn) plies = doublePush(i, from, to, turn, n);
+			    else plies = stored(table.index(sq, -turn), n);
+			    //what the move leads to is in plies for the other side, lost at an even number and won at an odd one
+			    if (plies<0) {
+				allLost = false;
+			    } else if ((plies&1)==0) {
+				quickest = Math.min(quickest, plies+1);
+				allLost = false;
+			    } else {
+				slowest = Math.max(slowest, plies+1);
+			    }
+			    if (!promotes) break;
+			}
+			types[i] = table.types[i];
+		    }
+		    sq[i] = from;
+		    if (taken>=0) sq[taken] = to;
+		}
+	    }
+	    int plies;
+	    if (moves==0) {
+		if (!attacked(sq[king], -turn, occ)) return;
+		plies = 0;
+	    } else if (quickest!=Integer.MAX_VALUE) {
+		plies = quickest;
+		int v = table.value(index);
+		if (v!=0 && v-1<=plies) return;
+	    } else if (allLost) {
+		plies = slowest;
+	    } else {
+		return;
+	    }
+	    if (plies>MAX_PLIES) throw new IllegalStateException(table.name + " has mates too long to store");
+	    table.values.put(index, (byte) (plies+1));
+	    g.longest.accumulateAndGet(plies, Math::max);
+	}
+
+	//plies to mate in a position of this table for its side to move if known by pass n, -1 if not
+	int stored(int at, int n) {
+	    int v = table.value(at);
+	    return v!=0 && v!=ILLEGAL && v-1<n? v-1: -1;
+	}
+
+	//the same for the position after a capture or promotion, in another table and so always known, -1 for a draw
+	int converted(int mover, int captured, int promotion) {
+	    int l = Generation.link(mover, captured, promotion);
+	    Table t = g.links[l];
+	    int v = t.value(t.index(types, colors, sq, -mover, g.flips[l], scratch));
+	    return v!=0 && v!=ILLEGAL? v-1: -1;
+	}
+
+	/*
+	 *a double push, where the other side might take en passant: tables hold positions without that capture, so the
+	 *value of the position after the push is the better of the stored one and each capture. when the only thing
+	 *known is a capture winning at more plies than this pass, it comes to that unless the stored value turns out
+	 *quicker, so this position is looked at again on that pass whether anything else wakes it up or not
+	 */
+	int doublePush(int i, int from, int to, int turn, int n) {
+	    int stored = stored(table.index(sq, -turn), n);
+	    int win = Integer.MAX_VALUE;
+	    boolean draw = false;
+	    int loss = -1;
+	    for (int j=0; j<count; j++) {
+		if (sq[j]<0 || colors[j]!=-turn || types[j]!=ChessBoard.PAWN || (sq[j]>>3) != (to>>3) || Math.abs((sq[j]&7) - (to&7)) != 1) continue;
+		int beside = sq[j];
+		long occ = 0L;
+		sq[j] = from + 8*turn;
+		sq[i] = -1;
+		for (int k=0; k<count; k++) if (sq[k]>=0) occ |= 1L<<sq[k];
+		if (!attacked(sq[turn==ChessBoard.WHITE? 1: 0], turn, occ)) {
+		    int plies = converted(-turn, ChessBoard.PAWN, ChessBoard.EMPTY);
+		    if (plies<0) draw = true;
+		    else if ((plies&1)==0) win = Math.min(win, plies+1);
+		    else loss = Math.max(loss, plies+1);
+		}
+		sq[j] = beside;
+		sq[i] = to;
+	    }
+	    if (win==Integer.MAX_VALUE && !draw && loss<0) return stored;
+	    if (stored>=0) {
+		if ((stored&1)!=0) return Math.min(stored, win);
+		return win!=Integer.MAX_VALUE? win: draw? -1: Math.max(stored, loss);
+	    }
+	    //the stored value is a draw or at least n plies
+	    if (win==Integer.MAX_VALUE) return -1;
+	    if (win<=n) return win;
+	    g.schedule(index, win);
+	    return -1;
+	}
+
+	/*
+	 *the positions a move of the side that just moved can have come from, without a capture or promotion (those
+	 *come from other tables), go in as candidates for the next resolve. some won't be legal, those are skipped then
+	 */
+	void unmoves(int at) {
+	    int turn = table.decode(at, sq);
+	    long occ = 0L;
+	    for (int i=0; i<count; i++) occ |= 1L<<sq[i];
+	    for (int i=0; i<count; i++) {
+		if (colors[i]!=-turn) continue;
+		int to = sq[i];
+		long origins;
+		if (types[i]==ChessBoard.PAWN) {
+		    int back = to + 8*turn;
+		    origins = 0L;
+		    if ((occ & 1L<<back) == 0L) {
+			if ((back>>3) != (turn==ChessBoard.WHITE? 7: 0)) origins |= 1L<<back;
+			if ((to>>3) == (turn==ChessBoard.WHITE? 4: 3) && (occ & 1L<<back+8*turn) == 0L) origins |= 1L<<back+8*turn;
+		    }
+		} else {
+		    origins = attacks(types[i], -turn, to, occ) & ~occ;
+		}
+		for (; origins != 0L; origins &= origins-1) {
+		    sq[i] = Long.numberOfTrailingZeros(origins);
+		    int parent = table.index(sq, -turn);
+		    int v = table.value(parent);
+		    if (v==0 || v!=ILLEGAL && (v&1)==0 && v-1>g.n) {
+			batch[batched++] = parent;
+			if (batched==batch.length) flush();
+		    }
+		}
+		sq[i] = to;
+	    }
+	}
+
+	void flush() {
+	    synchronized (g.candidates) {
+		for (int k=0; k<batched; k++) g.mark(batch[k]);
+	    }
+	    batched = 0;
+	}
+    }
+
+    /*
+     *java ChessTablebase [-dir path] [-threads n] [-check n] [-fen "..."] [KQK KRK KPK ...]
+     *generates the tables named (and those they lead into) in dir, a temporary one if not given, prints each, and
+     *checks n random positions of each against ChessBoard: the score probe gives has to be the best of its moves'
+     *scores, or mate or stalemate if there are none. with -fen, probes that position and gives the best move
+     */
+    public static void main(String[] args) throws IOException {
+	Path dir = null;
+	int threads = Runtime.getRuntime().availableProcessors();
+	int checks = 100000;
+	String fen = null;
+	List<String> names = new ArrayList<>();
+	for (int i=0; i<args.length; i++) {
+	    if (args[i].equals("-dir")) dir = Paths.get(args[++i]);
+	    else if (args[i].equals("-threads")) threads = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-check")) checks = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-fen")) fen = args[++i];
+	    else names.add(args[i]);
+	}
+	if (names.isEmpty() && fen==null) {
+	    names.add("KQK");
+	    names.add("KRK");
+	    names.add("KPK");
+	}
+	boolean temporary = dir==null;
+	if (temporary) dir = Files.createTempDirectory("tables");
+
+	ChessTablebase tb = new ChessTablebase(dir);
+	List<Table> made = new ArrayList<>();
+	tb.listener = t -> made.add(t);
+	pr(threads + " threads, tables in " + dir);
+	for (String name: names) {
+	    long start = System.nanoTime();
+	    tb.generate(name, threads);
+	    long elapsed = System.nanoTime()-start;
+	    for (Table t: made) {
+		ChessBoard b = new ChessBoard();
+		if (t.longestIndex<0) {
+		    pr(t.name + ": " + String.format("%,d", t.size()) + " positions, no mates");
+		    continue;
+		}
+		t.setup(t.longestIndex, b);
+		pr(String.format("%s, mate in %d from %s", t, (t.longest+1)/2, b.toFen()));
+	    }
+	    if (!made.isEmpty())
+		pr(String.format("  %.2fs, %,.0f positions/s", elapsed/1e9, made.stream().mapToLong(Table::size).sum()/(elapsed/1e9)));
+	    made.clear();
+	}
+
+	int bad = 0;
+	Random random = new Random(20161101L);
+	ChessBoard b = new ChessBoard();
+	int[] moves = new int[ChessMoveBuffer.CAPACITY];
+	for (String name: names) {
+	    Table t = tb.find(name);
+	    int checked = 0;
+	    int[] results = new int[3];
+	    for (int k=0; k<checks; k++) {
+		int index = random.nextInt(t.size());
+		if (t.value(index)==ILLEGAL) continue;
+		t.setup(index, b);
+		int score = tb.probe(b);
+		int n = b.legalMoves(b.turn, moves, 0);
+		int expected = n>0? -ChessEngine.INFINITE: b.inCheck(b.turn)? -ChessEngine.MATE: 0;
+		for (int i=0; i<n && expected!=UNKNOWN; i++) {
+		    b.makeMove(moves[i]);
+		    int after = tb.probe(b);
+		    expected = after==UNKNOWN? UNKNOWN: Math.max(expected, parent(after));
+		    b.unmakeMove();
+		}
+		checked++;
+		results[score>0? 0: score==0? 1: 2]++;
+		if (score!=expected && bad++ < 10)
+		    pr(name + " " + b.toFen() + " probes " + ChessEngine.scoreString(score) + ", its moves say " + ChessEngine.scoreString(expected));
+	    }
+	    pr(String.format("%s: %,d random positions checked, %d%% won, %d%% drawn, %d%% lost by the side to move", name, checked,
+			     100*results[0]/Math.max(1, checked), 100*results[1]/Math.max(1, checked), 100*results[2]/Math.max(1, checked)));
+	}
+	if (fen!=null) {
+	    b = ChessBoard.fromFen(fen);
+	    int score = tb.probe(b);
+	    int move = tb.bestMove(b);
+	    pr(fen + ": " + (score==UNKNOWN? "not in the tables": ChessEngine.scoreString(score) + (move!=0? ", " + b.toSan(move): "")));
+	}
+	if (temporary) {
+	    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+		for (Path file: files) Files.delete(file);
+	    }
+	    Files.delete(dir);
+	}
+	if (bad>0) {
+	    pr(bad + " positions disagree with their moves");
+	    System.exit(1);
+	}
+    }
+
+    static void pr(Object o) {
+	System.out.println(o);
+    }
+}
@@ -0,0 +1,429 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/*
+ *plays two engine setups against each other without a console. a fixed set of worker threads each own a board and
+ *an engine for either side and take the next game off a shared counter, the way ChessEpd hands out positions, so
+ *games run side by side sharing nothing but the tally, and twice the cores play twice the games.
+ *every opening is played twice, each side having white once. a game ends in mate, stalemate, threefold repetition,
+ *the fifty move rule, bare minor pieces or a move limit. results are reported as they come in, with the score so far,
+ *an elo estimate and, when bounds are given, a sequential probability ratio test that ends the match once it can
+ *accept one of them
+ */
+public class ChessTournament {
+    /*
+     *one engine setup, from a spec like "depth=6,hash=16,-killers": the search limit (depth, time in ms or nodes per
+     *move), the table size, a book and endgame tables to use, a name, and -mvvlva, -killers, -history or -counters
+     *to play without that move ordering heuristic
+     */
+    public static class Player {
+	public String name;
+	int depth;
+	long millis;
+	long nodes;
+	int hashMB = 16;
+	boolean mvvLva = true;
+	boolean killers = true;
+	boolean history = true;
+	boolean counters = true;
+	//opened once, every engine of this player reads the same ones
+	ChessBook book;
+	ChessTablebase tablebase;
+
+	public static Player parse(String spec, String name) throws IOException {
+	    Player p = new Player();
+	    p.name = name;
+	    for (String option: spec.split(",")) {
+		option = option.trim();
+		if (option.isEmpty()) continue;
+		int eq = option.indexOf('=');
+		String key = eq<0? option: option.substring(0, eq);
+		String value = eq<0? "": option.substring(eq+1);
+		try {
+		    if (key.equals("name")) p.name = value;
+		    else if (key.equals("depth")) p.depth = Integer.parseInt(value);
+		    else if (key.equals("time")) p.millis = Long.parseLong(value);
+		    else if (key.equals("nodes")) p.nodes = Long.parseLong(value);
+		    else if (key.equals("hash")) p.hashMB = Integer.parseInt(value);
+		    else if (key.equals("book")) p.book = new ChessBook(Paths.get(value));
+		    else if (key.equals("tables")) p.tablebase = new ChessTablebase(Paths.get(value));
+		    else if (key.equals("-mvvlva")) p.mvvLva = false;
+		    else if (key.equals("-killers")) p.killers = false;
+		    else if (key.equals("-history")) p.history = false;
+		    else if (key.equals("-counters")) p.counters = false;
+		    else throw new IllegalArgumentException("no option " + key);
+		} catch (NumberFormatException nfe) {
+		    throw new IllegalArgumentException("bad number in " + option);
+		}
+	    }
+	    if (p.depth==0 && p.millis==0L && p.nodes==0L) p.nodes = 20000L;
+	    return p;
+	}
+
+	ChessEngine newEngine() {
+	    ChessEngine e = new ChessEngine(hashMB);
+	    e.ordering.useMvvLva = mvvLva;
+	    e.ordering.useKillers = killers;
+	    e.ordering.useHistory = history;
+	    e.ordering.useCounters = counters;
+	    e.book = book;
+	    e.tablebase = tablebase;
+	    return e;
+	}
+
+	ChessEngine.Result move(ChessEngine e, ChessBoard b) {
+	    return e.search(b, depth, millis, nodes);
+	}
+
+	public String toString() {
+	    String limit = depth>0? "depth " + depth: millis>0? millis + "ms": nodes + " nodes";
+	    String off = (mvvLva? "": " -mvvlva") + (killers? "": " -killers") + (history? "": " -history") + (counters? "": " -counters");
+	    return name + " (" + limit + ", " + hashMB + "MB" + off + (book!=null? ", book": "") + (tablebase!=null? ", tables": "") + ")";
+	}
+    }
+
+    //one finished game, results always from white's side
+    public static class Game {
+	public final int number;
+	public final String opening;
+	public final Player white;
+	public final Player black;
+	public String result;
+	public String reason;
+	public int plies;
+	public long nodes;
+	public long nanos;
+	//the moves, from the opening on
+	public ChessMoveHistory history;
+
+	Game(int number, String opening, Player white, Player black) {
+	    this.number = number;
+	    this.opening = opening;
+	    this.white = white;
+	    this.black = black;
+	}
+
+	public String toString() {
+	    return String.format("%4d %-10s %-10s %-7s %-21s %3d plies", number+1, white.name, black.name, result, reason, plies);
+	}
+    }
+
+    final Player a;
+    final Player b;
+    final List<String> openings;
+    final int games;
+    final int threads;
+    //games still going at this many plies are drawn
+    public int maxPlies = 400;
+    //sprt bounds in elo for a against b, off if equal
+    public double elo0;
+    public double elo1;
+    public double alpha = 0.05;
+    public double beta = 0.05;
+    //called with each game as it finishes, holding the lock on the tally (so a listener sees them one at a time)
+    public Consumer<Game> listener;
+    //where finished games are written as pgn, if anywhere
+    public Appendable pgn;
+
+    //a's wins, draws and losses, guarded by this
+    int wins;
+    int draws;
+    int losses;
+    long plies;
+    long nodes;
+    //games that threw before finishing, left out of the score
+    int errors;
+    //set once the sprt has decided, no new games are started after it
+    volatile String decision;
+    //set if a finished game couldn't be recorded (the pgn writer failed, say), which stops the match
+    volatile RuntimeException failure;
+
+    public ChessTournament(Player a, Player b, List<String> openings, int games, int threads) {
+	if (openings.isEmpty()) throw new IllegalArgumentException("no openings");
+	//up front, so a bad one can't take a worker and its games down halfway through the match
+	for (int i=0; i<openings.size(); i++) {
+	    try {
+		ChessBoard.fromFen(openings.get(i));
+	    } catch (IllegalArgumentException iae) {
+		throw new IllegalArgumentException("opening " + (i+1) + ": " + iae.getMessage());
+	    }
+	}
+	this.a = a;
+	this.b = b;
+	this.openings = openings;
+	this.games = games;
+	this.threads = Math.max(1, threads);
+    }
+
+    //plays the match, returning once every game started has finished. a game that throws is counted as an error and
+    //the match goes on; one that can't be recorded stops it, and run rethrows that once the other games are done
+    public void run() throws InterruptedException {
+	AtomicInteger next = new AtomicInteger();
+	Thread[] workers = new Thread[Math.min(threads, Math.max(1, games))];
+	for (int t=0; t<workers.length; t++) {
+	    workers[t] = new Thread(() -> {
+		    ChessBoard board = new ChessBoard();
+		    ChessEngine[] engines = {a.newEngine(), b.newEngine()};
+		    for (int i = next.getAndIncrement(); i < games && decision==null && failure==null; i = next.getAndIncrement()) {
+			Game g;
+			try {
+			    g = play(i, board, engines);
+			} catch (RuntimeException e) {
+			    error(i, e);
+			    continue;
+			}
+			try {
+			    record(g);
+			} catch (RuntimeException e) {
+			    failure = e;
+			}
+		    }
+	    }, "tournament worker " + t);
+	    workers[t].start();
+	}
+	for (Thread w: workers) w.join();
+	if (failure!=null) throw failure;
+    }
+
+    //game number: opening number/2, a has white in the even ones
+    Game play(int number, ChessBoard board, ChessEngine[] engines) {
+	boolean aWhite = number%2==0;
+	Game g = new Game(number, openings.get(number/2 % openings.size()), aWhite? a: b, aWhite? b: a);
+	board.setFen(g.opening);
+	//nothing carries over from one game to the next
+	for (ChessEngine e: engines) {
+	    e.table.clear();
+	    e.ordering.clear();
+	}
+	long start = System.nanoTime();
+	while (!adjudicate(board, g)) {
+	    int side = (board.turn==ChessBoard.WHITE) == aWhite? 0: 1;
+	    ChessEngine.Result r = (side==0? a: b).move(engines[side], board);
+	    g.nodes += r.nodes;
+	    board.history.play(r.move);
+	}
+	g.history = board.history;
+	g.plies = board.history.size();
+	g.nanos = System.nanoTime()-start;
+	return g;
+    }
+
+    //whether the game in b is over, if so with the result and why filled in
+    boolean adjudicate(ChessBoard board, Game g) {
+	ChessMoveHistory h = board.history;
+	if (!board.hasAnyLegalMove(board.turn)) {
+	    boolean mate = board.inCheck(board.turn);
+	    g.result = !mate? "1/2-1/2": board.turn==ChessBoard.WHITE? "0-1": "1-0";
+	    g.reason = mate? "checkmate": "stalemate";
+	} else if (h.isThreefold()) {
+	    g.result = "1/2-1/2";
+	    g.reason = "repetition";
+	} else if (h.isFiftyMoves()) {
+	    g.result = "1/2-1/2";
+	    g.reason = "fifty moves";
+	} else if (insufficient(board)) {
+	    g.result = "1/2-1/2";
+	    g.reason = "insufficient material";
+	} else if (h.size()>=maxPlies) {
+	    g.result = "1/2-1/2";
+	    g.reason = "move limit";
+	} else {
+	    return false;
+	}
+	return true;
+    }
+
+    //kings and at most one bishop or knight between them, no mate is possible
+    static boolean insufficient(ChessBoard b) {
+	long heavy = 0L;
+	for (int type: new int[] {ChessBoard.PAWN, ChessBoard.ROOK, ChessBoard.QUEEN})
+	    heavy |= b.bbPieces(ChessBoard.WHITE, type) | b.bbPieces(ChessBoard.BLACK, type);
+	return heavy==0L && Long.bitCount(b.getAll()) <= 3;
+    }
+
+    synchronized void record(Game g) {
+	boolean aWhite = g.white==a;
+	if (g.result.equals("1/2-1/2")) draws++;
+	else if (g.result.equals("1-0")==aWhite) wins++;
+	else losses++;
+	plies += g.plies;
+	nodes += g.nodes;
+	if (decision==null && elo0!=elo1) {
+	    double llr = llr();
+	    if (llr >= Math.log((1-beta)/alpha)) decision = "H1 accepted after " + played() + " games, " + a.name + " is at least " + elo1 + " elo better";
+	    else if (llr <= Math.log(beta/(1-alpha))) decision = "H0 accepted after " + played() + " games, " + a.name + " is no more than " + elo0 + " elo better";
+	}
+	if (pgn!=null) {
+	    Map<String, String> tags = new LinkedHashMap<>();
+	    tags.put("Event", a.name + " vs " + b.name);
+	    tags.put("Round", String.valueOf(g.number+1));
+	    tags.put("White", g.white.name);
+	    tags.put("Black", g.black.name);
+	    tags.put("Result", g.result);
+	    tags.put("Termination", g.reason);
+	    try {
+		ChessPgn.write(g.history, tags, pgn);
+	    } catch (IOException ioe) {
+		throw new IllegalStateException(ioe);
+	    }
+	}
+	if (listener!=null) listener.accept(g);
+    }
+
+    synchronized void error(int number, RuntimeException e) {
+	errors++;
+	pr("game " + (number+1) + " failed: " + e);
+    }
+
+    public synchronized int played() {
+	return wins + draws + losses;
+    }
+
+    //a's score so far, a win 1 and a draw a half
+    public synchronized double score() {
+	return (wins + draws/2.0)/Math.max(1, played());
+    }
+
+    //the elo difference a score stands for, clamped short of the infinite ends
+    static double elo(double score) {
+	score = Math.min(0.999, Math.max(0.001, score));
+	//plus 0 so an even score isn't -0
+	return -400*Math.log10(1/score - 1) + 0.0;
+    }
+    static double expected(double elo) {
+	return 1/(1 + Math.pow(10, -elo/400));
+    }
+
+    //the variance of one game's score around the mean
+    synchronized double variance() {
+	double s = score();
+	int n = Math.max(1, played());
+	return (wins*(1-s)*(1-s) + draws*(0.5-s)*(0.5-s) + losses*s*s)/n;
+    }
+
+    //a's elo against b and the half width of its 95% interval
+    public synchronized double elo() {
+	return elo(score());
+    }
+    public synchronized double eloError() {
+	double s = score();
+	double margin = 1.96*Math.sqrt(variance()/Math.max(1, played()));
+	return (elo(s + margin) - elo(s - margin))/2;
+    }
+
+    //log likelihood ratio of elo1 over elo0, from the normal approximation to the trinomial results
+    public synchronized double llr() {
+	double var = variance();
+	if (var==0) return 0;
+	double s0 = expected(elo0);
+	double s1 = expected(elo1);
+	return played()*(s1 - s0)*(2*score() - s0 - s1)/(2*var);
+    }
+
+    public synchronized String tally() {
+	String s = String.format("+%d =%d -%d  %.1f%%  elo %+.0f +- %.0f", wins, draws, losses, 100*score(), elo(), eloError());
+	if (errors>0) s += "  errors " + errors;
+	if (elo0!=elo1) s += String.format("  llr %.2f (%.2f, %.2f)", llr(), Math.log(beta/(1-alpha)), Math.log((1-beta)/alpha));
+	return s;
+    }
+
+    //count openings from the start position, each a random number plies deep, with a move to play at the end
+    static List<String> randomOpenings(int count, int plies, Random random) {
+	List<String> fens = new ArrayList<>();
+	ChessBoard b = new ChessBoard();
+	int[] moves = new int[ChessMoveBuffer.CAPACITY];
+	while (fens.size() < count) {
+	    b.setup();
+	    for (int i=0; i<plies; i++) {
+		int n = b.legalMoves(b.turn, moves, 0);
+		if (n==0) break;
+		b.history.play(moves[random.nextInt(n)]);
+	    }
+	    if (b.hasAnyLegalMove(b.turn)) fens.add(b.toFen());
+	}
+	return fens;
+    }
+
+    /*
+     *java ChessTournament [-a spec] [-b spec] [-games n] [-threads n] [-openings file.epd] [-random plies]
+     *[-plies n] [-sprt elo0 elo1] [-pgn out.pgn] [-quiet]
+     *a spec is as Player.parse takes it ("nodes=20000,-killers"). openings are epd or fen lines, the first four fields
+     *of each are used; without a file they are random moves from the start. by default a plays b with its move
+     *ordering heuristics switched off, at the same node count
+     */
+    public static void main(String[] args) throws Exception {
+	String specA = "nodes=20000";
+	String specB = "nodes=20000,-killers,-history,-counters";
+	int games = 100;
+	int threads = Runtime.getRuntime().availableProcessors();
+	String openingFile = null;
+	int randomPlies = 8;
+	int maxPlies = 400;
+	double elo0 = 0;
+	double elo1 = 0;
+	String pgnFile = null;
+	boolean quiet = false;
+	for (int i=0; i<args.length; i++) {
+	    if (args[i].equals("-a")) specA = args[++i];
+	    else if (args[i].equals("-b")) specB = args[++i];
+	    else if (args[i].equals("-games")) games = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-threads")) threads = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-openings")) openingFile = args[++i];
+	    else if (args[i].equals("-random")) randomPlies = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-plies")) maxPlies = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-sprt")) {
+		elo0 = Double.parseDouble(args[++i]);
+		elo1 = Double.parseDouble(args[++i]);
+	    }
+	    else if (args[i].equals("-pgn")) pgnFile = args[++i];
+	    else if (args[i].equals("-quiet")) quiet = true;
+	}
+	Player a = Player.parse(specA, "a");
+	Player b = Player.parse(specB, "b");
+
+	List<String> openings = new ArrayList<>();
+	if (openingFile!=null) {
+	    for (ChessEpd.Position p: ChessEpd.load(openingFile)) openings.add(p.fen);
+	} else {
+	    openings = randomOpenings((games+1)/2, randomPlies, new Random(20161201L));
+	}
+
+	ChessTournament match = new ChessTournament(a, b, openings, games, threads);
+	match.maxPlies = maxPlies;
+	match.elo0 = elo0;
+	match.elo1 = elo1;
+	Writer out = pgnFile!=null? Files.newBufferedWriter(Paths.get(pgnFile), StandardCharsets.UTF_8): null;
+	match.pgn = out;
+	if (!quiet) match.listener = g -> pr(g + "  " + match.tally());
+	pr(a + " vs " + b);
+	pr(games + " games, " + openings.size() + " openings, " + match.threads + " threads");
+
+	long start = System.nanoTime();
+	try {
+	    match.run();
+	} finally {
+	    if (out!=null) out.close();
+	}
+	long elapsed = System.nanoTime()-start;
+
+	pr(match.tally());
+	//games already going when it decided are played out and counted too
+	if (match.decision!=null) pr(match.decision);
+	pr(String.format("%d games in %.2fs: %.2f games/s, %.0f plies/s, %.2f Mnps", match.played(), elapsed/1e9,
+			 match.played()*1e9/elapsed, match.plies*1e9/elapsed, match.nodes*1e3/elapsed));
+    }
+
+    static void pr(Object o) {
+	System.out.println(o);
+    }
+}
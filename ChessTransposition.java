@@ -0,0 +1,189 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ *shared transposition table for search results, sized in MB and safe to use from many threads without locks.
+ *entries live in one long[], two longs each: (key ^ data, data). a reader only trusts an entry if the xor gives
+ *back its own key, so a slot torn by two threads writing at once just reads as a miss.
+ *entries are grouped four to a bucket (64 bytes, one cache line); a store picks its slot in the bucket by depth and age
+ */
+public class ChessTransposition {
+    //bound types. an empty slot has bound 0
+    public static final int UPPER = 1;
+    public static final int LOWER = 2;
+    public static final int EXACT = 3;
+
+    static final int BUCKET = 4;
+    static final int AGES = 64;
+
+    //data layout: move code (24 bits) | score (16, signed) | depth (8, signed) | bound (2) | age (6)
+    public static int moveOf(long data) {return (int) (data & 0xFFFFFF);}
+    public static int scoreOf(long data) {return (short) (data>>>24);}
+    public static int depthOf(long data) {return (byte) (data>>>40);}
+    public static int boundOf(long data) {return (int) (data>>>48) & 3;}
+    static int ageOf(long data) {return (int) (data>>>50) & (AGES-1);}
+
+    static long pack(int move, int score, int depth, int bound, int age) {
+	return (move & 0xFFFFFFL)
+	    | ((score & 0xFFFFL)<<24)
+	    | ((depth & 0xFFL)<<40)
+	    | ((long) bound<<48)
+	    | ((long) age<<50);
+    }
+
+    final long[] slots;
+    final int buckets;
+    //the current search, entries from older searches are replaced first
+    volatile int age;
+
+    public final LongAdder probes = new LongAdder();
+    public final LongAdder hits = new LongAdder();
+    //probes that found only other positions in the bucket
+    public final LongAdder collisions = new LongAdder();
+    //stores that replaced an entry for another position from the current search
+    public final LongAdder overwrites = new LongAdder();
+
+    public ChessTransposition(int mb) {
+	long bytes = Math.max(1L, mb) * 1024L * 1024L;
+	int n = Integer.highestOneBit((int) Math.min(1L<<30, bytes/(16*BUCKET)));
+	buckets = Math.max(1, n);
+	slots = new long[2*BUCKET*buckets];
+    }
+
+    public int sizeMB() {
+	return (int) (8L*slots.length/(1024*1024));
+    }
+
+    public void clear() {
+	Arrays.fill(slots, 0L);
+	age = 0;
+	probes.reset();
+	hits.reset();
+	collisions.reset();
+	overwrites.reset();
+    }
+
+    //call once before each search, so entries left from earlier ones age out
+    public void newSearch() {
+	age = (age+1) & (AGES-1);
+    }
+
+    private int bucket(long key) {
+	return (int) (key ^ (key>>>32)) & (buckets-1);
+    }
+
+    //the entry for key, or 0 if there is none
+    public long probe(long key) {
+	probes.increment();
+	int base = 2*BUCKET*bucket(key);
+	boolean occupied = false;
+	for (int i=base; i<base+2*BUCKET; i+=2) {
+	    long data = slots[i+1];
+	    if ((slots[i] ^ data) == key && boundOf(data)!=0) {
+		hits.increment();
+		return data;
+	    }
+	    occupied |= data!=0L;
+	}
+	if (occupied) collisions.increment();
+	return 0L;
+    }
+
+    /*
+     *the slot for key if it is already in the bucket, otherwise the one with the least worth keeping: empty first,
+     *then the shallowest, counting each search it has aged as two plies of depth lost.
+     *a store without a move keeps the move already stored for the same position
+     */
+    public void store(long key, int move, int score, int depth, int bound) {
+	int base = 2*BUCKET*bucket(key);
+	int now = age;
+	int victim = base;
+	int worst = Integer.MAX_VALUE;
+	long old = 0L;
+	for (int i=base; i<base+2*BUCKET; i+=2) {
+	    long data = slots[i+1];
+	    if ((slots[i] ^ data) == key) {
+		victim = i;
+		old = data;
+		break;
+	    }
+	    int worth = boundOf(data)==0? Integer.MIN_VALUE: depthOf(data) - 2*((now - ageOf(data)) & (AGES-1));
+	    if (worth < worst) {
+		worst = worth;
+		victim = i;
+		old = data;
+	    }
+	}
+	boolean same = (slots[victim] ^ old) == key && boundOf(old)!=0;
+	if (same) {
+	    if (move==0) move = moveOf(old);
+	} else if (boundOf(old)!=0 && ageOf(old)==now) {
+	    overwrites.increment();
+	}
+	long data = pack(move, score, depth, bound, now);
+	slots[victim] = key ^ data;
+	slots[victim+1] = data;
+    }
+
+    //same, keyed by a board's position and reading back a ChessMove
+    public long probe(ChessBoard b) {
+	return probe(b.getKey());
+    }
+    public ChessMove bestMove(ChessBoard b) {
+	int move = moveOf(probe(b));
+	return move==0? null: new ChessMove(move);
+    }
+
+    //permille of sampled entries written in the current search
+    public int hashfull() {
+	int used = 0;
+	int sample = Math.min(1000, slots.length/2);
+	int now = age;
+	for (int i=0; i<sample; i++) {
+	    long data = slots[2*i+1];
+	    if (boundOf(data)!=0 && ageOf(data)==now) used++;
+	}
+	return 1000*used/Math.max(1, sample);
+    }
+
+    public String stats() {
+	long p = probes.sum();
+	return String.format("%dMB, %,d probes, %.1f%% hits, %,d collisions, %,d overwrites, %d permille full",
+			     sizeMB(), p, 100.0*hits.sum()/Math.max(1L, p), collisions.sum(), overwrites.sum(), hashfull());
+    }
+
+    //java ChessTransposition [mb] [threads]: hammers a small table from several threads and checks that every hit
+    //reads back exactly what was stored under its key, which a torn write would break
+    public static void main(String[] args) throws InterruptedException {
+	int mb = args.length>0? Integer.parseInt(args[0]): 1;
+	int threads = args.length>1? Integer.parseInt(args[1]): Runtime.getRuntime().availableProcessors();
+	ChessTransposition table = new ChessTransposition(mb);
+	LongAdder bad = new LongAdder();
+	Thread[] workers = new Thread[threads];
+	long start = System.nanoTime();
+	for (int t=0; t<threads; t++) {
+	    final long seed = t;
+	    workers[t] = new Thread(() -> {
+		    Random random = new Random(seed);
+		    for (int i=0; i<2000000; i++) {
+			//few enough keys that threads keep landing on the same buckets
+			long key = random.nextInt(1<<18) * 0x9E3779B97F4A7C15L;
+			long data = table.probe(key);
+			if (data!=0L && moveOf(data)!=((int) key & 0xFFFFFF)) bad.increment();
+			table.store(key, (int) key & 0xFFFFFF, (short) (key>>>40), random.nextInt(20), EXACT);
+		    }
+		});
+	    workers[t].start();
+	}
+	for (Thread w: workers) w.join();
+	pr(threads + " threads, " + (System.nanoTime()-start)/1000000 + "ms");
+	pr(table.stats());
+	pr(bad.sum()==0? "no corrupt reads": bad.sum() + " corrupt reads");
+	if (bad.sum()!=0) System.exit(1);
+    }
+
+    static void pr(Object o) {
+	System.out.println(o);
+    }
+}
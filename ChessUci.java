@@ -0,0 +1,420 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ *the engine behind the universal chess interface, for chess guis. one thread reads the commands and a second runs
+ *the searches, so the reader is always free: isready, stop and ponderhit are answered straight away, and a stopped
+ *search sends its bestmove within the 256 nodes it checks its stop flag in. each finished iteration is sent as an
+ *info line, with a line of node counts every second in between.
+ *anything that changes the position or the engine (position, go, setoption, ucinewgame) first waits for a search
+ *still going, since the search reads the board's game record for repetitions the whole time it runs. a gui sends
+ *stop before them anyway; without it a search with limits is let finish, and only go infinite and go ponder, which
+ *would never end by themselves, are stopped. they keep their bestmove back until stop, or until ponderhit and the
+ *time go asked for. so a script can be piped in and gives the same moves every time:
+ *    printf 'uci\nposition startpos moves e2e4\ngo depth 8\n' | java -cp target/classes ChessUci
+ */
+public class ChessUci {
+    static final String NAME = "SahashBrownsAndBiscotti";
+    static final String AUTHOR = "Mahesh Saha and Josh Turcotti";
+    //kept back from the clock for the gui and the jvm, on top of the time the search itself takes to stop
+    static final long MARGIN = 50;
+
+    final BufferedReader in;
+    final PrintStream out;
+    ChessEngine engine;
+    int hashMB = 64;
+    ChessBoard board = ChessBoard.fromFen(ChessBoard.START_FEN);
+
+    final ExecutorService searcher = Executors.newSingleThreadExecutor(r -> daemon(r, "uci search"));
+    final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "uci timer"));
+    Future<?> search;
+    ScheduledFuture<?> ticker;
+    ScheduledFuture<?> ponderStop;
+    //set by stop, so a stop sent before the search has started still ends it after its first iteration
+    volatile boolean stopping;
+    //a go infinite or go ponder search holds its bestmove back while this is set
+    boolean holding;
+    //the time a ponder search has once the gui says the move pondered on was played
+    long ponderMillis;
+
+    public ChessUci(BufferedReader in, PrintStream out) {
+	this.in = in;
+	this.out = out;
+	newEngine();
+    }
+
+    static Thread daemon(Runnable r, String name) {
+	Thread t = new Thread(r, name);
+	t.setDaemon(true);
+	return t;
+    }
+
+    void newEngine() {
+	ChessEngine old = engine;
+	engine = new ChessEngine(hashMB);
+	if (old!=null) {
+	    engine.setThreads(old.getThreads());
+	    engine.book = old.book;
+	    engine.tablebase = old.tablebase;
+	    //shuts the old helpers' pool down
+	    old.setThreads(1);
+	}
+	engine.listener = r -> {
+	    if (stopping) engine.stop();
+	    send(info(r));
+	};
+    }
+
+    //the lines go out whole and at once, from whichever thread
+    synchronized void send(String line) {
+	out.println(line);
+	out.flush();
+    }
+
+    String info(ChessEngine.Result r) {
+	StringBuilder sb = new StringBuilder("info depth ").append(r.depth);
+	sb.append(" score ").append(ChessEngine.scoreString(r.score));
+	sb.append(" nodes ").append(r.nodes).append(" nps ").append(r.nps()).append(" time ").append(r.nanos/1000000);
+	sb.append(" hashfull ").append(engine.table.hashfull());
+	if (r.pv.length>0) sb.append(" pv");
+	for (int code: r.pv) sb.append(' ').append(ChessMove.codeToUci(code));
+	return sb.toString();
+    }
+
+    //reads commands until quit or the end of the input
+    public void run() throws IOException {
+	String line;
+	while ((line = in.readLine()) != null) {
+	    line = line.trim();
+	    if (line.isEmpty()) continue;
+	    if (!command(line.split("\\s+"))) {
+		stopSearch();
+		return;
+	    }
+	}
+	finishSearch();
+    }
+
+    //false for quit
+    boolean command(String[] words) {
+	switch (words[0]) {
+	case "uci":
+	    send("id name " + NAME);
+	    send("id author " + AUTHOR);
+	    send("option name Hash type spin default 64 min 1 max 4096");
+	    send("option name Threads type spin default 1 min 1 max 64");
+	    send("option name Ponder type check default false");
+	    send("option name Clear Hash type button");
+	    send("option name BookFile type string default <empty>");
+	    send("option name TablesPath type string default <empty>");
+	    send("uciok");
+	    break;
+	case "isready":
+	    send("readyok");
+	    break;
+	case "ucinewgame":
+	    finishSearch();
+	    engine.table.clear();
+	    engine.ordering.clear();
+	    break;
+	case "setoption":
+	    finishSearch();
+	    setOption(words);
+	    break;
+	case "position":
+	    finishSearch();
+	    position(words);
+	    break;
+	case "go":
+	    finishSearch();
+	    go(words);
+	    break;
+	case "stop":
+	    stop();
+	    break;
+	case "ponderhit":
+	    ponderhit();
+	    break;
+	case "quit":
+	    return false;
+	case "debug":
+	case "register":
+	    break;
+	default:
+	    send("info string unknown command " + String.join(" ", words));
+	}
+	return true;
+    }
+
+    //setoption name <name, maybe several words> [value <value>]
+    void setOption(String[] words) {
+	int value = Arrays.asList(words).indexOf("value");
+	if (words.length<3 || !words[1].equals("name")) return;
+	String name = String.join(" ", Arrays.copyOfRange(words, 2, value<0? words.length: value)).toLowerCase();
+	String arg = value<0? "": String.join(" ", Arrays.copyOfRange(words, value+1, words.length));
+	try {
+	    switch (name) {
+	    case "hash":
+		hashMB = Math.max(1, Math.min(4096, Integer.parseInt(arg)));
+		newEngine();
+		break;
+	    case "threads":
+		engine.setThreads(Math.max(1, Math.min(64, Integer.parseInt(arg))));
+		break;
+	    case "clear hash":
+		engine.table.clear();
+		break;
+	    case "bookfile":
+		engine.book = arg.isEmpty() || arg.equals("<empty>")? null: new ChessBook(Paths.get(arg));
+		break;
+	    case "tablespath":
+		engine.tablebase = arg.isEmpty() || arg.equals("<empty>")? null: new ChessTablebase(Paths.get(arg));
+		break;
+	    case "ponder":
+		break;
+	    default:
+		send("info string unknown option " + name);
+	    }
+	} catch (IOException | NumberFormatException e) {
+	    send("info string setoption " + name + ": " + e);
+	}
+    }
+
+    //position startpos|fen <fen> [moves <move>...]
+    void position(String[] words) {
+	int i = 1;
+	String fen = ChessBoard.START_FEN;
+	if (words.length>1 && words[1].equals("fen")) {
+	    for (i=2; i<words.length && !words[i].equals("moves"); i++);
+	    fen = String.join(" ", Arrays.copyOfRange(words, 2, i));
+	} else i = 2;
+	try {
+	    board = ChessBoard.fromFen(fen);
+	} catch (IllegalArgumentException e) {
+	    send("info string bad fen " + fen + ": " + e.getMessage());
+	    board = ChessBoard.fromFen(ChessBoard.START_FEN);
+	    return;
+	}
+	int[] moves = new int[256];
+	for (i++; i<words.length; i++) {
+	    int code = find(board, moves, words[i]);
+	    if (code==0) {
+		send("info string illegal move " + words[i]);
+		return;
+	    }
+	    board.history.play(code);
+	}
+    }
+
+    //the legal move written uci in b, or 0
+    static int find(ChessBoard b, int[] moves, String uci) {
+	int n = b.legalMoves(b.turn, moves, 0);
+	for (int j=0; j<n; j++) if (ChessMove.codeToUci(moves[j]).equals(uci)) return moves[j];
+	return 0;
+    }
+
+    //go [wtime t] [btime t] [winc t] [binc t] [movestogo n] [depth d] [nodes n] [mate n] [movetime t] [infinite] [ponder]
+    void go(String[] words) {
+	long time = 0, inc = 0, movetime = 0, nodes = 0;
+	int depth = 0, movesToGo = 0;
+	boolean infinite = false, ponder = false;
+	String own = board.turn==ChessBoard.WHITE? "w": "b";
+	try {
+	    for (int i=1; i<words.length; i++) {
+		switch (words[i]) {
+		case "wtime": case "btime":
+		    if (words[i].startsWith(own)) time = Long.parseLong(words[++i]); else i++;
+		    break;
+		case "winc": case "binc":
+		    if (words[i].startsWith(own)) inc = Long.parseLong(words[++i]); else i++;
+		    break;
+		case "movestogo": movesToGo = Integer.parseInt(words[++i]); break;
+		case "depth": depth = Integer.parseInt(words[++i]); break;
+		case "nodes": nodes = Long.parseLong(words[++i]); break;
+		case "mate": depth = 2*Integer.parseInt(words[++i]); break;
+		case "movetime": movetime = Long.parseLong(words[++i]); break;
+		case "infinite": infinite = true; break;
+		case "ponder": ponder = true; break;
+		default:
+		}
+	    }
+	} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+	    send("info string bad go command " + String.join(" ", words));
+	    return;
+	}
+	long millis = movetime>0? movetime: time>0? allot(time, inc, movesToGo): 0;
+	//a bare go is taken as go infinite
+	if (millis==0 && depth==0 && nodes==0) infinite = true;
+	start(board, depth, infinite || ponder? 0: millis, nodes, infinite || ponder, ponder? millis: 0);
+    }
+
+    //an even share of the time left (a thirtieth without movestogo) and most of the increment, never all of it
+    static long allot(long time, long inc, int movesToGo) {
+	long share = time/(movesToGo>0? movesToGo+1: 30) + inc*3/4;
+	return Math.max(1, Math.min(share, time - MARGIN));
+    }
+
+    synchronized void start(ChessBoard b, int depth, long millis, long nodes, boolean hold, long ponder) {
+	if (ponderStop!=null) ponderStop.cancel(false);
+	stopping = false;
+	holding = hold;
+	ponderMillis = ponder;
+	ChessEngine e = engine;
+	long startTime = System.nanoTime();
+	ticker = timer.scheduleAtFixedRate(() -> {
+		long n = e.totalNodes();
+		long ms = (System.nanoTime()-startTime)/1000000;
+		send("info nodes " + n + " nps " + n*1000/Math.max(1L, ms) + " time " + ms + " hashfull " + e.table.hashfull());
+	    }, 1000, 1000, TimeUnit.MILLISECONDS);
+	search = searcher.submit(() -> {
+		ChessEngine.Result r = null;
+		try {
+		    r = e.search(b, depth, millis, nodes);
+		} catch (RuntimeException ex) {
+		    //the gui still gets its bestmove, and the reader carries on
+		    send("info string search failed: " + ex);
+		} finally {
+		    ticker.cancel(false);
+		}
+		synchronized (this) {
+		    while (holding) {
+			try {
+			    wait();
+			} catch (InterruptedException ex) {
+			    break;
+			}
+		    }
+		}
+		if (r==null || r.move==0) send("bestmove 0000");
+		else if (r.pv.length>1) send("bestmove " + ChessMove.codeToUci(r.move) + " ponder " + ChessMove.codeToUci(r.pv[1]));
+		else send("bestmove " + ChessMove.codeToUci(r.move));
+	    });
+    }
+
+    //ends the search and lets its bestmove go, without waiting for it
+    synchronized void stop() {
+	stopping = true;
+	engine.stop();
+	holding = false;
+	notifyAll();
+    }
+
+    //the move pondered on was played: the search carries on, now with the time go ponder asked for
+    synchronized void ponderhit() {
+	if (search==null || search.isDone()) return;
+	holding = false;
+	notifyAll();
+	if (ponderMillis>0) {
+	    ChessEngine e = engine;
+	    ponderStop = timer.schedule(e::stop, ponderMillis, TimeUnit.MILLISECONDS);
+	}
+    }
+
+    //waits for a search with limits to end by itself, stopping one that wouldn't
+    void finishSearch() {
+	boolean held;
+	synchronized (this) {
+	    held = holding;
+	}
+	if (held) stopSearch();
+	else waitForSearch();
+    }
+
+    void stopSearch() {
+	if (search==null) return;
+	stop();
+	waitForSearch();
+    }
+
+    void waitForSearch() {
+	if (search==null) return;
+	try {
+	    search.get();
+	} catch (InterruptedException | ExecutionException e) {
+	    send("info string " + e);
+	}
+	search = null;
+    }
+
+    /*
+     *runs a script of commands through a ChessUci on pipes and times its answers to isready and stop,
+     *sent during a go infinite search: the time from the command going in to readyok or bestmove coming out.
+     *the worst of them is mostly the jit and the scheduler, with fewer cores than busy threads
+     */
+    static void latency(int rounds) throws Exception {
+	PipedWriter script = new PipedWriter();
+	BufferedReader reader = new BufferedReader(new PipedReader(script, 1<<16));
+	PrintWriter commands = new PrintWriter(script, true);
+	LinkedBlockingQueue<Long> answers = new LinkedBlockingQueue<>();
+	//only readyok and bestmove are timed, with the time their line was finished
+	PrintStream replies = new PrintStream(new OutputStream() {
+		StringBuilder line = new StringBuilder();
+		public void write(int c) {
+		    if (c!='\n') {
+			line.append((char) c);
+			return;
+		    }
+		    if (line.indexOf("readyok")==0 || line.indexOf("bestmove")==0) answers.add(System.nanoTime());
+		    line.setLength(0);
+		}
+	    });
+	ChessUci uci = new ChessUci(reader, replies);
+	Thread loop = new Thread(() -> {
+		try {
+		    uci.run();
+		} catch (IOException e) {
+		    throw new RuntimeException(e);
+		}
+	    });
+	loop.start();
+	commands.println("position startpos moves e2e4 e7e5 g1f3 b8c6");
+	long[] ready = new long[rounds];
+	long[] stop = new long[rounds];
+	for (int i=0; i<rounds; i++) {
+	    commands.println("go infinite");
+	    Thread.sleep(200);
+	    long t = System.nanoTime();
+	    commands.println("isready");
+	    ready[i] = answers.take() - t;
+	    t = System.nanoTime();
+	    commands.println("stop");
+	    stop[i] = answers.take() - t;
+	}
+	commands.println("quit");
+	loop.join();
+	Arrays.sort(ready);
+	Arrays.sort(stop);
+	pr(String.format("%d rounds during go infinite, median, 90th percentile and worst:", rounds));
+	pr(String.format("isready -> readyok  %8.3fms %8.3fms %8.3fms", ready[rounds/2]/1e6, ready[rounds*9/10]/1e6, ready[rounds-1]/1e6));
+	pr(String.format("stop    -> bestmove %8.3fms %8.3fms %8.3fms", stop[rounds/2]/1e6, stop[rounds*9/10]/1e6, stop[rounds-1]/1e6));
+    }
+
+    //java ChessUci [-latency [rounds]]
+    public static void main(String[] args) throws Exception {
+	if (args.length>0 && args[0].equals("-latency")) {
+	    latency(args.length>1? Integer.parseInt(args[1]): 20);
+	    return;
+	}
+	new ChessUci(new BufferedReader(new InputStreamReader(System.in)), System.out).run();
+    }
+
+    static void pr(Object o) {
+	System.out.println(o);
+    }
+}
@@ -0,0 +1,57 @@
+import java.util.Random;
+
+//random keys for zobrist hashing: a position's key is the xor of the keys of everything in it
+//never meant to be initiated, like Chess
+public class ChessZobrist {
+    //[color (0 white, 1 black)][type][square]
+    public static final long[][][] pieces = new long[2][6][64];
+    public static final long blackToMove;
+    //indexed by the four castling rights as bits, see castleRights
+    public static final long[] castling = new long[16];
+    //file of the passant pawn
+    public static final long[] passant = new long[8];
+
+    static {
+	//fixed seed, keys have to be the same from run to run
+	Random random = new Random(0x5AB15C077L);
+	for (long[][] color: pieces)
+	    for (long[] type: color)
+		for (int i=0; i<64; i++) type[i] = random.nextLong();
+	blackToMove = random.nextLong();
+	for (int i=1; i<16; i++) castling[i] = random.nextLong();
+	for (int i=0; i<8; i++) passant[i] = random.nextLong();
+    }
+
+    public static long piece(int color, int type, int pos) {
+	return pieces[color==ChessBoard.WHITE? 0: 1][type][pos];
+    }
+
+    //rights as bits: white short, white long, black short, black long
+    public static int castleRights(ChessBoard b) {
+	return (b.castleRight(ChessBoard.WHITE, true)? 1: 0)
+	    | (b.castleRight(ChessBoard.WHITE, false)? 2: 0)
+	    | (b.castleRight(ChessBoard.BLACK, true)? 4: 0)
+	    | (b.castleRight(ChessBoard.BLACK, false)? 8: 0);
+    }
+
+    //the pawns alone, for ChessPawns
+    public static long pawnKey(ChessBoard b) {
+	long key = 0L;
+	for (long l=b.bbWhite[ChessBoard.PAWN]; l != 0L; l &= l-1) key ^= pieces[0][ChessBoard.PAWN][Long.numberOfTrailingZeros(l)];
+	for (long l=b.bbBlack[ChessBoard.PAWN]; l != 0L; l &= l-1) key ^= pieces[1][ChessBoard.PAWN][Long.numberOfTrailingZeros(l)];
+	return key;
+    }
+
+    //key computed from scratch
+    public static long key(ChessBoard b) {
+	long key = 0L;
+	for (int type=0; type<6; type++) {
+	    for (long l=b.bbWhite[type]; l != 0L; l &= l-1) key ^= pieces[0][type][Long.numberOfTrailingZeros(l)];
+	    for (long l=b.bbBlack[type]; l != 0L; l &= l-1) key ^= pieces[1][type][Long.numberOfTrailingZeros(l)];
+	}
+	if (b.turn==ChessBoard.BLACK) key ^= blackToMove;
+	key ^= castling[castleRights(b)];
+	if (b.passantPossible()) key ^= passant[b.passant%8];
+	return key;
+    }
+}
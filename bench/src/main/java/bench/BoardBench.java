@@ -0,0 +1,111 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+//ChessBoard operations on a fixed opening, middlegame and endgame position, side to move
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoardBench {
+    @Param({"opening", "middlegame", "endgame"})
+    public String position;
+
+    Object board;
+    int color;
+    int king;
+    int[] pieces;
+    int[] legal;
+    int legalCount;
+    int[] buffer;
+    List<Object> candidates;
+    long occupancy;
+
+    static String fen(String position) {
+	switch (position) {
+	case "opening":
+	    return "r1bqkbnr/pppp1ppp/2n5/1B2p3/4P3/5N2/PPPP1PPP/RNBQK2R b KQkq - 3 3";
+	case "middlegame":
+	    return "r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10";
+	default:
+	    return "8/5pk1/6p1/8/3R4/6P1/5PK1/3r4 w - - 0 1";
+	}
+    }
+
+    @Setup
+    public void setup() throws Throwable {
+	board = (Object) Core.FROM_FEN.invokeExact(fen(position));
+	color = (int) Core.TURN.invokeExact(board);
+	king = (int) Core.KING_INDEX.invokeExact(board, color);
+	occupancy = (long) Core.GET_ALL.invokeExact(board);
+	List<Integer> own = new ArrayList<>();
+	for (int i=0; i<64; i++)
+	    if ((int) Core.COLOR_AT.invokeExact(board, i) == color) own.add(i);
+	pieces = new int[own.size()];
+	for (int i=0; i<pieces.length; i++) pieces[i] = own.get(i);
+	buffer = new int[256];
+	legal = new int[256];
+	legalCount = (int) Core.LEGAL_MOVES.invokeExact(board, color, legal, 0);
+	candidates = new ArrayList<>();
+	for (int i=0; i<legalCount; i++) candidates.add((Object) Core.DECODE.invokeExact(legal[i]));
+    }
+
+    @Benchmark
+    public long attacking() throws Throwable {
+	return (long) Core.ATTACKING.invokeExact(board, king, -color);
+    }
+
+    //the list generator, square by square, as ChessHumanGame uses it
+    @Benchmark
+    public void pieceMoves(Blackhole bh) throws Throwable {
+	for (int pos: pieces) bh.consume((List<?>) Core.PIECE_MOVES.invokeExact(board, pos));
+    }
+
+    //the original pseudo legal + filterSafe generator, square by square
+    @Benchmark
+    public void trialMoves(Blackhole bh) throws Throwable {
+	for (int pos: pieces) bh.consume((List<?>) Core.TRIAL_MOVES.invokeExact(board, pos));
+    }
+
+    @Benchmark
+    public List<?> filterSafe() throws Throwable {
+	return (List<?>) Core.FILTER_SAFE.invokeExact(board, (List) candidates, color);
+    }
+
+    //full position generation into a reused buffer
+    @Benchmark
+    public int legalMoves() throws Throwable {
+	return (int) Core.LEGAL_MOVES.invokeExact(board, color, buffer, 0);
+    }
+
+    //every legal move played and taken back
+    @Benchmark
+    public void makeUnmake() throws Throwable {
+	for (int i=0; i<legalCount; i++) {
+	    Core.MAKE_MOVE.invokeExact(board, legal[i]);
+	    Core.UNMAKE_MOVE.invokeExact(board);
+	}
+    }
+
+    @Benchmark
+    public List<?> toIndices() throws Throwable {
+	return (List<?>) Core.TO_INDICES.invokeExact(occupancy);
+    }
+}
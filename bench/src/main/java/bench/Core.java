@@ -0,0 +1,99 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+
+/*
+ *the game lives in the default package, which a named package can't import, and jmh refuses
+ *benchmarks in the default package. so the benchmarks reach the game through method handles,
+ *with the board erased to Object. held in static finals the handles are constants to the jit
+ *and get inlined like direct calls, so they don't skew the numbers
+ */
+final class Core {
+    static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+    static final Class<?> CHESS = load("Chess");
+    static final Class<?> BOARD = load("ChessBoard");
+    static final Class<?> MOVE = load("ChessMove");
+
+    static final MethodHandle ROOK_MASK = onChess("rookMask");
+    static final MethodHandle BISHOP_MASK = onChess("bishopMask");
+    static final MethodHandle QUEEN_MASK = onChess("queenMask");
+    static final MethodHandle HYPERBOLA_ROOK_MASK = onChess("hyperbolaRookMask");
+    static final MethodHandle HYPERBOLA_BISHOP_MASK = onChess("hyperbolaBishopMask");
+
+    //List ChessBoard.toIndices(long)
+    static final MethodHandle TO_INDICES = findStatic(BOARD, "toIndices", MethodType.methodType(List.class, long.class));
+    //Object (a ChessBoard) fromFen(String)
+    static final MethodHandle FROM_FEN = findStatic(BOARD, "fromFen", MethodType.methodType(BOARD, String.class))
+	.asType(MethodType.methodType(Object.class, String.class));
+
+    static final MethodHandle ATTACKING = onBoard("attacking", long.class, int.class, int.class);
+    static final MethodHandle PIECE_MOVES = onBoard("pieceMoves", List.class, int.class);
+    static final MethodHandle TRIAL_MOVES = onBoard("trialMoves", List.class, int.class);
+    static final MethodHandle FILTER_SAFE = onBoard("filterSafe", List.class, List.class, int.class);
+    static final MethodHandle LEGAL_MOVES = onBoard("legalMoves", int.class, int.class, int[].class, int.class);
+    static final MethodHandle MAKE_MOVE = onBoard("makeMove", void.class, int.class);
+    static final MethodHandle UNMAKE_MOVE = onBoard("unmakeMove", void.class);
+    static final MethodHandle KING_INDEX = onBoard("getKingIndex", int.class, int.class);
+    static final MethodHandle COLOR_AT = onBoard("colorAtPosition", int.class, int.class);
+    static final MethodHandle GET_ALL = onBoard("getAll", long.class);
+    static final MethodHandle TURN = getter("turn", int.class);
+    //ChessMove(int code)
+    static final MethodHandle DECODE = constructor(MOVE, int.class);
+
+    private Core() {}
+
+    private static Class<?> load(String name) {
+	try {
+	    return Class.forName(name);
+	} catch (ClassNotFoundException e) {
+	    throw new IllegalStateException("game classes missing, run mvn install in the top directory first", e);
+	}
+    }
+
+    //static long name(long occ, int square)
+    private static MethodHandle onChess(String name) {
+	return findStatic(CHESS, name, MethodType.methodType(long.class, long.class, int.class));
+    }
+
+    //instance method on ChessBoard, receiver erased to Object
+    private static MethodHandle onBoard(String name, Class<?> returns, Class<?>... params) {
+	MethodHandle handle = findVirtual(BOARD, name, MethodType.methodType(returns, params));
+	return handle.asType(handle.type().changeParameterType(0, Object.class));
+    }
+
+    private static MethodHandle findStatic(Class<?> owner, String name, MethodType type) {
+	try {
+	    return LOOKUP.findStatic(owner, name, type);
+	} catch (ReflectiveOperationException e) {
+	    throw new IllegalStateException(owner.getName() + "." + name, e);
+	}
+    }
+
+    private static MethodHandle findVirtual(Class<?> owner, String name, MethodType type) {
+	try {
+	    return LOOKUP.findVirtual(owner, name, type);
+	} catch (ReflectiveOperationException e) {
+	    throw new IllegalStateException(owner.getName() + "." + name, e);
+	}
+    }
+
+    private static MethodHandle getter(String name, Class<?> type) {
+	try {
+	    return LOOKUP.findGetter(BOARD, name, type).asType(MethodType.methodType(type, Object.class));
+	} catch (ReflectiveOperationException e) {
+	    throw new IllegalStateException("ChessBoard." + name, e);
+	}
+    }
+
+    private static MethodHandle constructor(Class<?> owner, Class<?>... params) {
+	try {
+	    return LOOKUP.findConstructor(owner, MethodType.methodType(void.class, params))
+		.asType(MethodType.methodType(Object.class, params));
+	} catch (ReflectiveOperationException e) {
+	    throw new IllegalStateException(owner.getName() + "(...)", e);
+	}
+    }
+}
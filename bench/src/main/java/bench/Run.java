@@ -0,0 +1,18 @@
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+//the usual jmh command line, with the gc profiler always on so allocation rates come with every result
+public class Run {
+    public static void main(String[] args) throws Exception {
+	Options options = new OptionsBuilder()
+	    .parent(new CommandLineOptions(args))
+	    .addProfiler(GCProfiler.class)
+	    .build();
+	new Runner(options).run();
+    }
+}
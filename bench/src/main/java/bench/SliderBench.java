@@ -0,0 +1,85 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//sliding attack lookups, one call per square over a rotating set of random occupancies
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SliderBench {
+    long[] occupancies;
+    int next;
+
+    @Setup
+    public void setup() {
+	Random random = new Random(1L);
+	occupancies = new long[1024];
+	for (int i=0; i<occupancies.length; i++) occupancies[i] = random.nextLong() & random.nextLong();
+    }
+
+    long occupancy() {
+	next = (next+1) & (occupancies.length-1);
+	return occupancies[next];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public long rookMask() throws Throwable {
+	long occ = occupancy();
+	long sink = 0L;
+	for (int i=0; i<64; i++) sink ^= (long) Core.ROOK_MASK.invokeExact(occ, i);
+	return sink;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public long bishopMask() throws Throwable {
+	long occ = occupancy();
+	long sink = 0L;
+	for (int i=0; i<64; i++) sink ^= (long) Core.BISHOP_MASK.invokeExact(occ, i);
+	return sink;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public long queenMask() throws Throwable {
+	long occ = occupancy();
+	long sink = 0L;
+	for (int i=0; i<64; i++) sink ^= (long) Core.QUEEN_MASK.invokeExact(occ, i);
+	return sink;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public long hyperbolaRookMask() throws Throwable {
+	long occ = occupancy();
+	long sink = 0L;
+	for (int i=0; i<64; i++) sink ^= (long) Core.HYPERBOLA_ROOK_MASK.invokeExact(occ, i);
+	return sink;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public long hyperbolaBishopMask() throws Throwable {
+	long occ = occupancy();
+	long sink = 0L;
+	for (int i=0; i<64; i++) sink ^= (long) Core.HYPERBOLA_BISHOP_MASK.invokeExact(occ, i);
+	return sink;
+    }
+}